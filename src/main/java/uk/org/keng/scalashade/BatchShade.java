@@ -0,0 +1,313 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+
+/**
+ * Shades many jars in one run. All jars share one pool of threads for transforming entries and one compiled set of
+ * rules, several jars are read & written at once on threads of their own, virtual threads where the runtime has
+ * them. Each input jar is released as soon as it has been written.
+ * <p/>
+ * Jobs are read from a manifest with one job per line:
+ * <pre>
+ * &lt;input jar&gt; &lt;output jar&gt;
+ * </pre>
+ * Paths are separated by a tab, or by spaces if the line has no tab. Blank lines and lines starting with '#' are
+ * ignored.
+ */
+class BatchShade {
+
+    /**
+     * A jar to shade
+     */
+    static final class Job {
+        final File input;
+        final File output;
+
+        Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Jars being read & written at once, per transform thread
+     */
+    private static final int JOBS_PER_THREAD = 2;
+
+    private final List<Job> jobs = new ArrayList<>();
+    private boolean compact = false;
+    private boolean relocateBytecode = false;
+    private int threads = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int nestedDepth = 0;
+    private long nestedMemory = JarShade.DEFAULT_NESTED_MEMORY;
+    private ShadeCache cache = null;
+    private ExecutorService pool = null;
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+    private long modified = 0;
+
+    /**
+     * Add a jar to shade
+     *
+     * @param input  the jar to read
+     * @param output the jar to write
+     */
+    void add(File input, File output) {
+        jobs.add(new Job(input, output));
+    }
+
+    /**
+     * Add the jobs from a manifest file
+     *
+     * @param manifest the manifest
+     * @param dir      directory relative paths are resolved against, or null for the working directory
+     * @throws CtxException if the file can not be read or contains an invalid line
+     */
+    void readManifest(File manifest, File dir) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new CtxException("Could not read manifest: " + manifest, e);
+        }
+
+        int lineNumber = 0;
+        for (String line : lines) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] paths = line.indexOf('\t') != -1 ? line.split("\\t+") : line.split("\\s+");
+            if (paths.length != 2)
+                throw new CtxException("Invalid job at " + manifest + ":" + lineNumber +
+                        ": Expected '<input jar> <output jar>'");
+            add(FileUtil.resolve(dir, paths[0].trim()), FileUtil.resolve(dir, paths[1].trim()));
+        }
+    }
+
+    /**
+     * Add a job for each jar in a directory, writing to a jar of the same name in another directory
+     *
+     * @param inputDir  directory of jars to read
+     * @param outputDir directory to write jars to, created if needed
+     * @throws CtxException if the directories can not be used
+     */
+    void addDirectory(File inputDir, File outputDir) {
+        File[] jars = inputDir.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".jar"));
+        if (jars == null)
+            throw new CtxException("Could not list directory: " + inputDir.getAbsolutePath());
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new CtxException("Could not create directory: " + outputDir.getAbsolutePath());
+        if (inputDir.getAbsoluteFile().equals(outputDir.getAbsoluteFile()))
+            throw new CtxException("Output directory must differ from the input directory: " + outputDir);
+        Arrays.sort(jars);
+        for (File jar : jars) {
+            add(jar, new File(outputDir, jar.getName()));
+        }
+    }
+
+    /**
+     * @return the jobs added so far
+     */
+    List<Job> jobs() {
+        return jobs;
+    }
+
+    /**
+     * Set if signatures should be compacted after being updated
+     *
+     * @param compact true to drop entries that are no longer used from updated signatures
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Set if class names in bytecode should be relocated as well as those in signatures
+     *
+     * @param relocateBytecode true to relocate bytecode
+     */
+    public void setRelocateBytecode(boolean relocateBytecode) {
+        this.relocateBytecode = relocateBytecode;
+    }
+
+    /**
+     * Set the number of threads in the shared pool that transforms entries
+     *
+     * @param threads the number of threads
+     * @throws CtxException if threads is less than 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new CtxException("Number of threads must be at least 1: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Set the compression level for entries that are written, see {@link JarShade#setLevel(int)}
+     *
+     * @param level the level, 0-9 or -1 for the default level
+     * @throws CtxException if the level is not valid
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new CtxException("Compression level should be between 0 and 9: " + level);
+        this.level = level;
+    }
+
+    /**
+     * Set how deep to shade jars nested in the jars, see {@link JarShade#setNested(int, long)}
+     *
+     * @param depth  levels of nesting to shade, 0 to copy nested jars unchanged
+     * @param memory limit on the memory held for nested jars while shading each jar, in bytes
+     * @throws CtxException if depth or memory is negative
+     */
+    public void setNested(int depth, long memory) {
+        if (depth < 0)
+            throw new CtxException("Nested jar depth should not be negative: " + depth);
+        if (memory < 0)
+            throw new CtxException("Nested jar memory limit should not be negative: " + memory);
+        this.nestedDepth = depth;
+        this.nestedMemory = memory;
+    }
+
+    /**
+     * Set a cache of the outcome of shading classes, shared by all the jars
+     *
+     * @param cache the cache, or null to not use one
+     */
+    public void setCache(ShadeCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set where messages are printed, by default the console
+     *
+     * @param out stream for progress messages
+     * @param err stream for warnings & failures
+     */
+    public void setOutput(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Set a pool to transform entries on, shared with other work, see {@link JarShade#setPool(ExecutorService)}
+     *
+     * @param pool the pool, or null to create one for the run
+     */
+    public void setPool(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Shade all the jars, a jar that fails is reported and does not stop the others
+     *
+     * @param relocations Absolute namespaces to change and what to change them to
+     * @param verbose     If true, extra debug is printed
+     * @return the number of jars that failed
+     */
+    int run(NamespaceTrie relocations, boolean verbose) {
+        ClassShader shader = new ClassShader(relocations, compact, relocateBytecode, cache);
+        ExecutorService pool = this.pool != null ? this.pool : Executors.newFixedThreadPool(threads);
+        ExecutorService io = ioExecutor();
+        Semaphore running = new Semaphore(threads * JOBS_PER_THREAD);
+        int failed = 0;
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (Job job : jobs) {
+                running.acquireUninterruptibly();
+                results.add(io.submit(() -> {
+                    try {
+                        return shade(job, shader, pool, verbose);
+                    } finally {
+                        running.release();
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                if (!JarShade.await(result))
+                    failed++;
+            }
+        } finally {
+            io.shutdownNow();
+            if (pool != this.pool)
+                pool.shutdownNow();
+        }
+        shader.finish(out, verbose);
+        modified = shader.modified();
+        return failed;
+    }
+
+    /**
+     * @return the number of classes updated by the last {@link #run(NamespaceTrie, boolean)}, across all the jars
+     */
+    long modified() {
+        return modified;
+    }
+
+    private boolean shade(Job job, ClassShader shader, ExecutorService pool, boolean verbose) {
+        JarShade jarShade = null;
+        try {
+            jarShade = new JarShade(job.input);
+            jarShade.setThreads(threads);
+            jarShade.setLevel(level);
+            jarShade.setNested(nestedDepth, nestedMemory);
+            jarShade.setPool(pool);
+            jarShade.setOutput(out, err);
+            jarShade.writeTo(job.output, shader, verbose);
+            if (verbose)
+                out.println("Shaded:    " + job.input + " -> " + job.output);
+            return true;
+        } catch (CtxException e) {
+            err.println("Failed to shade " + job.input + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (jarShade != null)
+                jarShade.close();
+        }
+    }
+
+    /**
+     * Executor for reading & writing jars, a thread per task as they mostly wait. Virtual threads are used where
+     * the runtime has them, found reflectively so this still runs on Java 8.
+     */
+    static ExecutorService ioExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,807 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Minimal reader & writer for the class file format, see the JVM specification chapter 4. The header and constant
+ * pool are read first, which is enough to tell whether a class can have a ScalaSignature. If it can, the class
+ * annotations are located so the signature can be read, and replaced by patching its constants in place. Everything
+ * else in the class is copied as it is, so the cost of a rewrite depends on the size of the signature rather than
+ * the size of the class.
+ */
+class ClassFile {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * Constant pool tags
+     */
+    static final int CONSTANT_Utf8 = 1;
+    static final int CONSTANT_Integer = 3;
+    static final int CONSTANT_Float = 4;
+    static final int CONSTANT_Long = 5;
+    static final int CONSTANT_Double = 6;
+    static final int CONSTANT_Class = 7;
+    static final int CONSTANT_String = 8;
+    static final int CONSTANT_Fieldref = 9;
+    static final int CONSTANT_Methodref = 10;
+    static final int CONSTANT_InterfaceMethodref = 11;
+    static final int CONSTANT_NameAndType = 12;
+    static final int CONSTANT_MethodHandle = 15;
+    static final int CONSTANT_MethodType = 16;
+    static final int CONSTANT_Dynamic = 17;
+    static final int CONSTANT_InvokeDynamic = 18;
+    static final int CONSTANT_Module = 19;
+    static final int CONSTANT_Package = 20;
+
+    /**
+     * Endings of the ScalaSignature annotation descriptors, the package they are in may have been shaded
+     */
+    static final String SCALA_SIGNATURE_SUFFIX = "/reflect/ScalaSignature;";
+    static final String SCALA_LONG_SIGNATURE_SUFFIX = "/reflect/ScalaLongSignature;";
+    private static final byte[] SCALA_SIGNATURE = SCALA_SIGNATURE_SUFFIX.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SCALA_LONG_SIGNATURE = SCALA_LONG_SIGNATURE_SUFFIX.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = utf8("RuntimeVisibleAnnotations");
+    private static final byte[] BYTES = utf8("bytes");
+
+    private static final int MAX_CONSTANTS = 65535;
+
+    private final byte[] _bytes;
+    private final int[] _offsets;
+    private final int _constantPoolEnd;
+
+    // Where the signature annotation was found by findScalaSignature()
+    private int _attribute = -1;
+    private int _annotation = -1;
+    private int _annotationEnd = -1;
+    private int _bytesName = -1;
+    private boolean _long = false;
+    private int[] _chunks = null;
+
+    /**
+     * Read the constant pool of a class
+     *
+     * @param bytes the class file
+     * @throws CtxException if the bytes are not a class file or the constant pool is truncated or invalid
+     */
+    ClassFile(byte[] bytes) {
+        _bytes = bytes;
+        if (bytes.length < 10 || readInt(0) != MAGIC)
+            throw new CtxException("Not a class file");
+
+        // Record the offset of each constant's tag, Long & Double take two slots and the second is left as 0
+        int count = readUnsignedShort(8);
+        _offsets = new int[count];
+        int offset = 10;
+        for (int index = 1; index < count; index++) {
+            if (offset >= bytes.length)
+                throw new CtxException("Truncated constant pool");
+            _offsets[index] = offset;
+            int tag = bytes[offset] & 0xff;
+            switch (tag) {
+                case CONSTANT_Utf8:
+                    offset += 3 + readUnsignedShort(offset + 1);
+                    break;
+                case CONSTANT_Class:
+                case CONSTANT_String:
+                case CONSTANT_MethodType:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                    offset += 3;
+                    break;
+                case CONSTANT_MethodHandle:
+                    offset += 4;
+                    break;
+                case CONSTANT_Integer:
+                case CONSTANT_Float:
+                case CONSTANT_Fieldref:
+                case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref:
+                case CONSTANT_NameAndType:
+                case CONSTANT_Dynamic:
+                case CONSTANT_InvokeDynamic:
+                    offset += 5;
+                    break;
+                case CONSTANT_Long:
+                case CONSTANT_Double:
+                    offset += 9;
+                    index++;
+                    break;
+                default:
+                    throw new CtxException("Unknown constant pool tag " + tag + " at index " + index);
+            }
+        }
+        if (offset > bytes.length)
+            throw new CtxException("Truncated constant pool");
+        _constantPoolEnd = offset;
+    }
+
+    /**
+     * Test if the class may have a ScalaSignature or ScalaLongSignature annotation, whatever package the
+     * annotations have been shaded to. An annotation's descriptor must be in the constant pool for the class to use
+     * it, finding one does not mean the class is annotated.
+     *
+     * @return false if the class can not have a signature
+     */
+    boolean mayHaveScalaSignature() {
+        for (int index = 1; index < _offsets.length; index++) {
+            int offset = _offsets[index];
+            if (offset != 0 && _bytes[offset] == CONSTANT_Utf8) {
+                int length = readUnsignedShort(offset + 1);
+                int start = offset + 3;
+                if (length > 0 && _bytes[start] == 'L' &&
+                        (endsWith(start, length, SCALA_SIGNATURE) || endsWith(start, length, SCALA_LONG_SIGNATURE)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Test if any CONSTANT_Utf8 entry may refer to a class in one of a set of namespaces. Class names in bytecode
+     * are all held in CONSTANT_Utf8 entries, either as an internal name that starts the entry or after an 'L' in a
+     * descriptor or generic signature, and must match whole components of the namespace.
+     *
+     * @param namespaces the namespaces to look for, with '/' separators
+     * @return false if none of the namespaces can be referred to
+     */
+    boolean mayContainClassName(List<byte[]> namespaces) {
+        for (int index = 1; index < _offsets.length; index++) {
+            int offset = _offsets[index];
+            if (offset != 0 && _bytes[offset] == CONSTANT_Utf8) {
+                int start = offset + 3;
+                int end = start + readUnsignedShort(offset + 1);
+                for (byte[] namespace : namespaces) {
+                    if (containsClassName(start, end, namespace))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean containsClassName(int start, int end, byte[] namespace) {
+        search:
+        for (int at = start; at <= end - namespace.length; at++) {
+            if (at != start && _bytes[at - 1] != 'L')
+                continue;
+            for (int i = 0; i < namespace.length; i++) {
+                if (_bytes[at + i] != namespace[i])
+                    continue search;
+            }
+            int next = at + namespace.length;
+            if (next == end || _bytes[next] == '/' || _bytes[next] == ';' || _bytes[next] == '<')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Locate the ScalaSignature or ScalaLongSignature annotation of the class, this walks the fields & methods to
+     * reach the class attributes but does not look inside them
+     *
+     * @return true if the class has a signature
+     * @throws CtxException if the class is invalid or the signature annotation is not as expected
+     */
+    boolean findScalaSignature() {
+        int offset = _constantPoolEnd + 6;
+        offset += 2 + 2 * readUnsignedShort(offset);
+        for (int members = 0; members < 2; members++) {
+            int count = readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                offset = skipAttributes(offset + 6);
+            }
+        }
+
+        int attributes = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributes; i++) {
+            int length = readInt(offset + 2);
+            if (length < 0 || length > _bytes.length - offset - 6)
+                throw new CtxException("Truncated class file");
+            int end = offset + 6 + length;
+            if (utf8Equals(readUnsignedShort(offset), RUNTIME_VISIBLE_ANNOTATIONS))
+                findScalaSignature(offset, end);
+            offset = end;
+        }
+        return _annotation != -1;
+    }
+
+    /**
+     * Look through the annotations of a RuntimeVisibleAnnotations attribute for a signature annotation
+     */
+    private void findScalaSignature(int attribute, int end) {
+        int count = readUnsignedShort(attribute + 6);
+        int offset = attribute + 8;
+        for (int i = 0; i < count; i++) {
+            int start = offset;
+            int type = readUnsignedShort(offset);
+            offset = skipAnnotation(offset);
+            boolean isLong = utf8IsDescriptor(type, SCALA_LONG_SIGNATURE);
+            if (isLong || utf8IsDescriptor(type, SCALA_SIGNATURE)) {
+                if (_annotation != -1)
+                    throw new CtxException("Multiple ScalaSignature annotations found");
+                _attribute = attribute;
+                _annotation = start;
+                _annotationEnd = offset;
+                _long = isLong;
+                readSignatureValue(start);
+            }
+        }
+        if (offset != end)
+            throw new CtxException("RuntimeVisibleAnnotations attribute has wrong length");
+    }
+
+    /**
+     * Read the constant indexes of the chunks of a signature annotation
+     */
+    private void readSignatureValue(int annotation) {
+        if (readUnsignedShort(annotation + 2) != 1)
+            throw new CtxException("ScalaSignature has wrong number of values");
+        _bytesName = readUnsignedShort(annotation + 4);
+        if (!utf8Equals(_bytesName, BYTES))
+            throw new CtxException("ScalaSignature has wrong first value");
+        int offset = annotation + 6;
+        int tag = readUnsignedByte(offset);
+        if (!_long && tag == 's') {
+            _chunks = new int[]{utf8Index(readUnsignedShort(offset + 1))};
+        } else if (_long && tag == '[') {
+            _chunks = new int[readUnsignedShort(offset + 1)];
+            offset += 3;
+            for (int i = 0; i < _chunks.length; i++) {
+                if (readUnsignedByte(offset) != 's')
+                    throw new CtxException("ScalaSignature has wrong type for value 1");
+                _chunks[i] = utf8Index(readUnsignedShort(offset + 1));
+                offset += 3;
+            }
+        } else {
+            throw new CtxException("ScalaSignature has wrong type for value 1");
+        }
+    }
+
+    /**
+     * Get the encoded signature found by {@link #findScalaSignature()}
+     *
+     * @return the chunks of the signature
+     */
+    List<String> signatureChunks() {
+        List<String> chunks = new ArrayList<>(_chunks.length);
+        for (int index : _chunks) {
+            int offset = _offsets[index];
+            chunks.add(decodeUtf8(offset + 3, readUnsignedShort(offset + 1)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Create a copy of the class with a different signature. The constants holding the signature are overwritten
+     * with the new chunks, adding constants if there are more chunks than before. A constant is only overwritten if
+     * the signature is all that refers to it, the compiler shares constants between equal strings, so a chunk whose
+     * constant is repeated or used elsewhere is given a new one. The annotation attribute is only rewritten if the
+     * constants it refers to change, all other parts of the class are copied as they are.
+     *
+     * @param chunks the encoded signature, a single chunk is stored as a ScalaSignature, more as a
+     *               ScalaLongSignature
+     * @return the new class file bytes
+     * @throws CtxException if there is no room in the constant pool for new constants
+     */
+    byte[] withSignature(List<String> chunks) {
+        // Decide the constants to change or add
+        int[] references = utf8References();
+        TreeMap<Integer, byte[]> patched = new TreeMap<>();
+        List<byte[]> added = new ArrayList<>();
+        int nextIndex = _offsets.length;
+        int[] chunkIndexes = new int[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = modifiedUtf8(chunks.get(i));
+            if (i < _chunks.length && isOnlyReference(references, _chunks[i])) {
+                chunkIndexes[i] = _chunks[i];
+                patched.put(_chunks[i], chunk);
+            } else {
+                chunkIndexes[i] = nextIndex++;
+                added.add(chunk);
+            }
+        }
+        // Chunks no longer needed are emptied if nothing else refers to them
+        for (int i = chunks.size(); i < _chunks.length; i++) {
+            if (isOnlyReference(references, _chunks[i]))
+                patched.put(_chunks[i], new byte[0]);
+        }
+
+        // A change of annotation keeps the package of the original
+        boolean isLong = chunks.size() > 1;
+        int type = readUnsignedShort(_annotation);
+        if (isLong != _long) {
+            String desc = decodeUtf8(_offsets[type] + 3, readUnsignedShort(_offsets[type] + 1));
+            desc = desc.substring(0, desc.lastIndexOf('/') + 1) + (isLong ? "ScalaLongSignature;" : "ScalaSignature;");
+            byte[] descBytes = modifiedUtf8(desc);
+            type = findUtf8(descBytes);
+            if (type == -1) {
+                type = nextIndex++;
+                added.add(descBytes);
+            }
+        }
+        if (nextIndex > MAX_CONSTANTS)
+            throw new CtxException("Too many constants for class file");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(_bytes.length + size(patched, added));
+
+        // Constant pool, copying ranges between the patched constants
+        out.write(_bytes, 0, 8);
+        writeShort(out, nextIndex);
+        int copied = 10;
+        for (Map.Entry<Integer, byte[]> e : patched.entrySet()) {
+            int offset = _offsets[e.getKey()];
+            out.write(_bytes, copied, offset - copied);
+            writeUtf8(out, e.getValue());
+            copied = offset + 3 + readUnsignedShort(offset + 1);
+        }
+        out.write(_bytes, copied, _constantPoolEnd - copied);
+        for (byte[] constant : added) {
+            writeUtf8(out, constant);
+        }
+
+        if (isLong == _long && Arrays.equals(chunkIndexes, _chunks)) {
+            // Annotation is unchanged
+            out.write(_bytes, _constantPoolEnd, _bytes.length - _constantPoolEnd);
+        } else {
+            // Rebuild the annotation, the attribute length changes with it
+            ByteArrayOutputStream annotation = new ByteArrayOutputStream();
+            writeShort(annotation, type);
+            writeShort(annotation, 1);
+            writeShort(annotation, _bytesName);
+            if (isLong) {
+                annotation.write('[');
+                writeShort(annotation, chunkIndexes.length);
+            }
+            for (int index : chunkIndexes) {
+                annotation.write('s');
+                writeShort(annotation, index);
+            }
+            int attributeEnd = _attribute + 6 + readInt(_attribute + 2);
+            int length = attributeEnd - _attribute - 6 - (_annotationEnd - _annotation) + annotation.size();
+
+            out.write(_bytes, _constantPoolEnd, _attribute + 2 - _constantPoolEnd);
+            writeInt(out, length);
+            out.write(_bytes, _attribute + 6, _annotation - _attribute - 6);
+            out.write(annotation.toByteArray(), 0, annotation.size());
+            out.write(_bytes, _annotationEnd, _bytes.length - _annotationEnd);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isOnlyReference(int[] references, int index) {
+        return references != null && references[index] == 1;
+    }
+
+    /**
+     * Count the references to each CONSTANT_Utf8 from other constants and from the parts of the class that refer to
+     * them directly, the signature annotation included
+     *
+     * @return the counts by constant index, or null if the class has an attribute whose references are not known
+     */
+    private int[] utf8References() {
+        int[] references = new int[_offsets.length];
+        for (int index = 1; index < _offsets.length; index++) {
+            int offset = _offsets[index];
+            if (offset == 0)
+                continue;
+            switch (_bytes[offset]) {
+                case CONSTANT_NameAndType:
+                    reference(references, readUnsignedShort(offset + 1));
+                    reference(references, readUnsignedShort(offset + 3));
+                    break;
+                case CONSTANT_Class:
+                case CONSTANT_String:
+                case CONSTANT_MethodType:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                    reference(references, readUnsignedShort(offset + 1));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        int offset = _constantPoolEnd + 6;
+        offset += 2 + 2 * readUnsignedShort(offset);
+        for (int members = 0; members < 2; members++) {
+            int count = readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                reference(references, readUnsignedShort(offset + 2));
+                reference(references, readUnsignedShort(offset + 4));
+                offset = referencesInAttributes(references, offset + 6);
+                if (offset == -1)
+                    return null;
+            }
+        }
+        return referencesInAttributes(references, offset) != -1 ? references : null;
+    }
+
+    /**
+     * @return the offset after the attributes, or -1 if one of them is not known
+     */
+    private int referencesInAttributes(int[] references, int offset) {
+        int count = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+            int name = readUnsignedShort(offset);
+            int length = readInt(offset + 2);
+            if (length < 0 || length > _bytes.length - offset - 6)
+                throw new CtxException("Truncated class file");
+            reference(references, name);
+            int start = offset + 6;
+            offset = start + length;
+            int nameOffset = _offsets[utf8Index(name)];
+            String attribute = decodeUtf8(nameOffset + 3, readUnsignedShort(nameOffset + 1));
+            if (!referencesInAttribute(references, attribute, start, offset))
+                return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * @return false if the attribute is not one known to refer to constants only in the ways counted
+     */
+    private boolean referencesInAttribute(int[] references, String attribute, int start, int end) {
+        switch (attribute) {
+            case "Code":
+                int codeLength = readInt(start + 4);
+                if (codeLength < 0 || codeLength > end - start - 8)
+                    throw new CtxException("Truncated class file");
+                int offset = start + 8 + codeLength;
+                offset += 2 + 8 * readUnsignedShort(offset);
+                return referencesInAttributes(references, offset) == end;
+            case "Signature":
+            case "SourceFile":
+                reference(references, readUnsignedShort(start));
+                return true;
+            case "RuntimeVisibleAnnotations":
+            case "RuntimeInvisibleAnnotations":
+                return referencesInAnnotations(references, start) == end;
+            case "RuntimeVisibleParameterAnnotations":
+            case "RuntimeInvisibleParameterAnnotations":
+                offset = start + 1;
+                for (int i = readUnsignedByte(start); i > 0; i--) {
+                    offset = referencesInAnnotations(references, offset);
+                }
+                return offset == end;
+            case "AnnotationDefault":
+                return referencesInElementValue(references, start) == end;
+            case "LocalVariableTable":
+            case "LocalVariableTypeTable":
+                for (int i = readUnsignedShort(start) - 1; i >= 0; i--) {
+                    reference(references, readUnsignedShort(start + 2 + 10 * i + 4));
+                    reference(references, readUnsignedShort(start + 2 + 10 * i + 6));
+                }
+                return true;
+            case "MethodParameters":
+                for (int i = readUnsignedByte(start) - 1; i >= 0; i--) {
+                    reference(references, readUnsignedShort(start + 1 + 4 * i));
+                }
+                return true;
+            case "InnerClasses":
+                for (int i = readUnsignedShort(start) - 1; i >= 0; i--) {
+                    reference(references, readUnsignedShort(start + 2 + 8 * i + 4));
+                }
+                return true;
+            case "ConstantValue":
+            case "Exceptions":
+            case "StackMapTable":
+            case "LineNumberTable":
+            case "EnclosingMethod":
+            case "BootstrapMethods":
+            case "NestHost":
+            case "NestMembers":
+            case "PermittedSubclasses":
+            case "SourceDebugExtension":
+            case "Deprecated":
+            case "Synthetic":
+                return true;
+            case "ScalaSig":
+            case "Scala":
+                return true;
+            case "ScalaInlineInfo":
+                return referencesInInlineInfo(references, start) == end;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Count the names & descriptors of a ScalaInlineInfo attribute, which are Utf8 constants of their own. Version 1
+     * is a u1 version, u1 flags, a u2 self type if flags has 2, u2 name & descriptor of the SAM if flags has 4, then a
+     * u2 count of u2 name, u2 descriptor & u1 flags for each method.
+     *
+     * @return the offset after the attribute, or -1 if the version is not known
+     */
+    private int referencesInInlineInfo(int[] references, int offset) {
+        if (readUnsignedByte(offset) != 1)
+            return -1;
+        int flags = readUnsignedByte(offset + 1);
+        offset += 2;
+        if ((flags & 2) != 0) {
+            reference(references, readUnsignedShort(offset));
+            offset += 2;
+        }
+        if ((flags & 4) != 0) {
+            reference(references, readUnsignedShort(offset));
+            reference(references, readUnsignedShort(offset + 2));
+            offset += 4;
+        }
+        int count = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+            reference(references, readUnsignedShort(offset));
+            reference(references, readUnsignedShort(offset + 2));
+            offset += 5;
+        }
+        return offset;
+    }
+
+    private int referencesInAnnotations(int[] references, int offset) {
+        int count = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+            offset = referencesInAnnotation(references, offset);
+        }
+        return offset;
+    }
+
+    private int referencesInAnnotation(int[] references, int offset) {
+        reference(references, readUnsignedShort(offset));
+        int pairs = readUnsignedShort(offset + 2);
+        offset += 4;
+        for (int i = 0; i < pairs; i++) {
+            reference(references, readUnsignedShort(offset));
+            offset = referencesInElementValue(references, offset + 2);
+        }
+        return offset;
+    }
+
+    private int referencesInElementValue(int[] references, int offset) {
+        switch (readUnsignedByte(offset)) {
+            case 's':
+            case 'c':
+                reference(references, readUnsignedShort(offset + 1));
+                return offset + 3;
+            case 'e':
+                reference(references, readUnsignedShort(offset + 1));
+                reference(references, readUnsignedShort(offset + 3));
+                return offset + 5;
+            case '@':
+                return referencesInAnnotation(references, offset + 1);
+            case '[':
+                int count = readUnsignedShort(offset + 1);
+                offset += 3;
+                for (int i = 0; i < count; i++) {
+                    offset = referencesInElementValue(references, offset);
+                }
+                return offset;
+            default:
+                return skipElementValue(offset);
+        }
+    }
+
+    private static void reference(int[] references, int index) {
+        if (index > 0 && index < references.length)
+            references[index]++;
+    }
+
+    private int size(TreeMap<Integer, byte[]> patched, List<byte[]> added) {
+        int size = 0;
+        for (Map.Entry<Integer, byte[]> e : patched.entrySet()) {
+            size += e.getValue().length - readUnsignedShort(_offsets[e.getKey()] + 1);
+        }
+        for (byte[] constant : added) {
+            size += 3 + constant.length;
+        }
+        return Math.max(0, size) + 16;
+    }
+
+    private int skipAttributes(int offset) {
+        int count = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+            int length = readInt(offset + 2);
+            if (length < 0 || length > _bytes.length - offset - 6)
+                throw new CtxException("Truncated class file");
+            offset += 6 + length;
+        }
+        return offset;
+    }
+
+    private int skipAnnotation(int offset) {
+        int pairs = readUnsignedShort(offset + 2);
+        offset += 4;
+        for (int i = 0; i < pairs; i++) {
+            offset = skipElementValue(offset + 2);
+        }
+        return offset;
+    }
+
+    private int skipElementValue(int offset) {
+        int tag = readUnsignedByte(offset);
+        switch (tag) {
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'F':
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'Z':
+            case 's':
+            case 'c':
+                return offset + 3;
+            case 'e':
+                return offset + 5;
+            case '@':
+                return skipAnnotation(offset + 1);
+            case '[':
+                int count = readUnsignedShort(offset + 1);
+                offset += 3;
+                for (int i = 0; i < count; i++) {
+                    offset = skipElementValue(offset);
+                }
+                return offset;
+            default:
+                throw new CtxException("Unknown annotation element tag " + tag);
+        }
+    }
+
+    /**
+     * Check a constant index refers to a CONSTANT_Utf8
+     */
+    private int utf8Index(int index) {
+        if (index <= 0 || index >= _offsets.length || _offsets[index] == 0 || _bytes[_offsets[index]] != CONSTANT_Utf8)
+            throw new CtxException("Invalid CONSTANT_Utf8 index " + index);
+        return index;
+    }
+
+    private boolean utf8Equals(int index, byte[] value) {
+        int offset = _offsets[utf8Index(index)];
+        return readUnsignedShort(offset + 1) == value.length && endsWith(offset + 3, value.length, value);
+    }
+
+    private boolean utf8IsDescriptor(int index, byte[] suffix) {
+        int offset = _offsets[utf8Index(index)];
+        int length = readUnsignedShort(offset + 1);
+        return length > 0 && _bytes[offset + 3] == 'L' && endsWith(offset + 3, length, suffix);
+    }
+
+    private int findUtf8(byte[] value) {
+        for (int index = 1; index < _offsets.length; index++) {
+            if (_offsets[index] != 0 && _bytes[_offsets[index]] == CONSTANT_Utf8 && utf8Equals(index, value))
+                return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode the modified UTF-8 used by class files, see DataInput.readUTF
+     */
+    private String decodeUtf8(int offset, int length) {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = offset + length;
+        while (offset < end) {
+            int b = _bytes[offset++] & 0xff;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0 && offset < end) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | (_bytes[offset++] & 0x3f));
+            } else if ((b & 0xf0) == 0xe0 && offset + 1 < end) {
+                chars[count++] = (char) (((b & 0x0f) << 12) | ((_bytes[offset] & 0x3f) << 6) |
+                        (_bytes[offset + 1] & 0x3f));
+                offset += 2;
+            } else {
+                throw new CtxException("Invalid CONSTANT_Utf8 encoding");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Encode a string in the modified UTF-8 used by class files, see DataOutput.writeUTF
+     */
+    static byte[] modifiedUtf8(String value) {
+        int size = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            size += c >= 0x01 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+        }
+        if (size > 65535)
+            throw new CtxException("String too long for CONSTANT_Utf8");
+        byte[] bytes = new byte[size];
+        int at = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x01 && c <= 0x7f) {
+                bytes[at++] = (byte) c;
+            } else if (c <= 0x7ff) {
+                bytes[at++] = (byte) (0xc0 | (c >> 6));
+                bytes[at++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[at++] = (byte) (0xe0 | (c >> 12));
+                bytes[at++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[at++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, byte[] value) {
+        out.write(CONSTANT_Utf8);
+        writeShort(out, value.length);
+        out.write(value, 0, value.length);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value & 0xffff);
+    }
+
+    private boolean endsWith(int start, int length, byte[] suffix) {
+        if (length < suffix.length)
+            return false;
+        int from = start + length - suffix.length;
+        for (int i = 0; i < suffix.length; i++) {
+            if (_bytes[from + i] != suffix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int readUnsignedByte(int offset) {
+        if (offset >= _bytes.length)
+            throw new CtxException("Truncated class file");
+        return _bytes[offset] & 0xff;
+    }
+
+    private int readUnsignedShort(int offset) {
+        if (offset + 2 > _bytes.length)
+            throw new CtxException("Truncated class file");
+        return ((_bytes[offset] & 0xff) << 8) | (_bytes[offset + 1] & 0xff);
+    }
+
+    private int readInt(int offset) {
+        if (offset + 4 > _bytes.length)
+            throw new CtxException("Truncated class file");
+        return ((_bytes[offset] & 0xff) << 24) | ((_bytes[offset + 1] & 0xff) << 16) |
+                ((_bytes[offset + 2] & 0xff) << 8) | (_bytes[offset + 3] & 0xff);
+    }
+}
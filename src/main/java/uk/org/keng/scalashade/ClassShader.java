@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shades single classes with a fixed set of rules & options, shared by the jar and directory handling. A shader may
+ * be used from any number of threads at once.
+ */
+class ClassShader {
+    private final NamespaceTrie relocations;
+    private final boolean compact;
+    private final RulesRemapper remapper;
+    private final ShadeCache cache;
+    private final byte[] cacheRules;
+    private final AtomicLong modified = new AtomicLong();
+
+    /**
+     * Outcome of shading a class
+     */
+    static final class Outcome {
+        final String name;
+        final byte[] bytes;
+        final Exception failure;
+
+        /**
+         * @param name    path to write the class to
+         * @param bytes   the updated class, or null if the class is unchanged
+         * @param failure why the class could not be shaded, it is then unchanged
+         */
+        Outcome(String name, byte[] bytes, Exception failure) {
+            this.name = name;
+            this.bytes = bytes;
+            this.failure = failure;
+        }
+
+        boolean modified() {
+            return bytes != null;
+        }
+    }
+
+    /**
+     * @param relocations      Absolute namespaces to change and what to change them to
+     * @param compact          true to drop entries that are no longer used from updated signatures
+     * @param relocateBytecode true to relocate class names in bytecode as well as signatures
+     * @param cache            cache of outcomes, or null
+     */
+    ClassShader(NamespaceTrie relocations, boolean compact, boolean relocateBytecode, ShadeCache cache) {
+        this.relocations = relocations;
+        this.compact = compact;
+        this.remapper = relocateBytecode ? new RulesRemapper(relocations) : null;
+        this.cache = cache;
+        this.cacheRules = cache != null ? ShadeCache.rulesHash(relocations, compact, relocateBytecode) : null;
+    }
+
+    /**
+     * Update a class if needed
+     *
+     * @param name     path of the class, such as "org/apache/Foo.class"
+     * @param original the class bytes
+     * @return the outcome, a class that can't be read or updated is unchanged with the failure given
+     */
+    Outcome shade(String name, byte[] original) {
+
+        // If we have a class try process @ScalaSignature, classes whose signature can't refer to
+        // a relocated namespace are passed through as read
+        ScalaSigClass sigClass;
+        boolean relocateClass;
+        boolean mayReference;
+        try {
+            sigClass = new ScalaSigClass(name, original);
+            relocateClass = remapper != null && sigClass.mayReferenceInBytecode(relocations);
+            mayReference = sigClass.mayReference(relocations);
+        } catch (Exception e) {
+            return new Outcome(name, null, e);
+        }
+
+        // The outcome for a class seen before can be used as is, classes ruled out by the constant pool scan
+        // are quicker to pass through than to look up
+        String key = cache != null && (relocateClass || mayReference) ? ShadeCache.key(cacheRules, original) : null;
+        byte[] cached = key != null ? cache.lookup(key) : null;
+        if (cached != null) {
+            if (cached == ShadeCache.UNCHANGED)
+                return new Outcome(name, null, null);
+            modified.incrementAndGet();
+            return new Outcome(relocateClass ? remapper.mapEntryName(name) : name, cached, null);
+        }
+
+        Outcome outcome;
+        try {
+            boolean modified = mayReference && sigClass.getSig().replace(relocations) > 0;
+            if (modified && compact)
+                sigClass.getSig().compact();
+            // Bytecode & signature are updated in one pass, unless no name in the bytecode is relocated after all
+            byte[] relocated = relocateClass ? sigClass.getBytes(remapper) : null;
+            if (relocated != null) {
+                outcome = new Outcome(remapper.mapEntryName(name), relocated, null);
+            } else if (modified) {
+                // This one need re-writing
+                outcome = new Outcome(name, sigClass.getBytes(), null);
+            } else {
+                outcome = new Outcome(name, null, null);
+            }
+        } catch (Exception e) {
+            return new Outcome(name, null, e);
+        }
+        if (key != null)
+            cache.store(key, outcome.bytes);
+        if (outcome.modified())
+            modified.incrementAndGet();
+        return outcome;
+    }
+
+    /**
+     * @return the number of classes updated so far
+     */
+    long modified() {
+        return modified.get();
+    }
+
+    /**
+     * Trim the cache, if there is one, after a run
+     *
+     * @param out     stream to print to
+     * @param verbose If true, cache use is printed
+     */
+    void finish(PrintStream out, boolean verbose) {
+        if (cache != null) {
+            cache.trim();
+            if (verbose)
+                out.println("Cache:     " + cache.hits() + " hits, " + cache.misses() + " misses");
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running process that shades for clients, so build tools that run many times pay for starting a JVM and
+ * compiling the shading code once. Jobs run concurrently on a shared pool of threads.
+ * <p/>
+ * The daemon listens on a port of the loopback address and writes the port, with a random token that clients must
+ * send, to a file that only the user can read. A client sends:
+ * <pre>
+ * UTF protocol, UTF token, UTF working directory, int count, count * UTF argument
+ * </pre>
+ * the daemon runs the arguments as {@link Main} would and sends back frames of a byte kind, messages are an int
+ * length and the bytes printed to stdout or stderr. After a job a stats frame gives the time it took in milliseconds
+ * & the number of classes modified as longs, the last frame gives the exit code as an int.
+ */
+class Daemon {
+
+    /**
+     * Default name of the daemon file, in the user's home directory
+     */
+    static final String DEFAULT_FILE = ".scalashade-daemon";
+
+    private static final String PROTOCOL = "scalashade-daemon-2";
+    private static final String STOP = "--stop-daemon";
+    private static final int EXIT = 0;
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+    private static final int STATS = 3;
+    private static final int MAX_ARGS = 0xffff;
+
+    /**
+     * Time allowed for a client to send a job
+     */
+    private static final int REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final File daemonFile;
+    private final int threads;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final AtomicLong jobCount = new AtomicLong();
+
+    /**
+     * @param daemonFile file to write how to reach the daemon to
+     * @param threads    number of threads in the pool shared by jobs
+     */
+    Daemon(File daemonFile, int threads) {
+        this.daemonFile = daemonFile;
+        this.threads = threads;
+    }
+
+    /**
+     * Accept jobs until asked to stop
+     *
+     * @param port port to listen on, 0 to pick a free port
+     * @param log  stream the daemon reports to
+     * @throws CtxException if the daemon can not listen or write its file
+     */
+    void serve(int port, PrintStream log) {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        ServerSocket server;
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            throw new CtxException("Could not listen on port " + port, e);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorService clients = BatchShade.ioExecutor();
+        try {
+            writeDaemonFile(server.getLocalPort() + " " + token);
+            log.println("Listening on port " + server.getLocalPort());
+            while (!stopping.get()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    // Closed by a stop request
+                    if (stopping.get())
+                        break;
+                    throw e;
+                }
+                clients.submit(() -> handle(socket, token.toString(), server, pool, log));
+            }
+        } catch (IOException e) {
+            throw new CtxException("Daemon failed", e);
+        } finally {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            removeDaemonFile(token.toString());
+
+            // Jobs already running are finished
+            clients.shutdown();
+            try {
+                while (!clients.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.println("Waiting for jobs to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                clients.shutdownNow();
+            }
+            pool.shutdownNow();
+        }
+        log.println("Stopped after " + jobCount.get() + " jobs");
+    }
+
+    /**
+     * Run the job a client sends, a client that does not send the token is dropped
+     */
+    private void handle(Socket socket, String token, ServerSocket server, ExecutorService pool, PrintStream log) {
+        try (Socket s = socket) {
+            s.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (!PROTOCOL.equals(in.readUTF()) || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                    in.readUTF().getBytes(StandardCharsets.UTF_8)))
+                return;
+            File dir = new File(in.readUTF());
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ARGS)
+                return;
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = in.readUTF();
+            }
+            s.setSoTimeout(0);
+
+            int code;
+            if (count == 1 && STOP.equals(args[0])) {
+                stopping.set(true);
+                server.close();
+                code = 0;
+            } else {
+                long job = jobCount.incrementAndGet();
+                long start = System.nanoTime();
+                AtomicLong modified = new AtomicLong();
+                PrintStream stdout = new PrintStream(new BufferedOutputStream(new Frames(out, STDOUT)), true, "UTF-8");
+                PrintStream stderr = new PrintStream(new BufferedOutputStream(new Frames(out, STDERR)), true, "UTF-8");
+                try {
+                    code = Main.run(args, dir, stdout, stderr, pool, modified);
+                } catch (RuntimeException e) {
+                    e.printStackTrace(stderr);
+                    code = 1;
+                }
+                stdout.flush();
+                stderr.flush();
+                long millis = (System.nanoTime() - start) / 1000000;
+                synchronized (out) {
+                    out.writeByte(STATS);
+                    out.writeLong(millis);
+                    out.writeLong(modified.get());
+                }
+                log.println("Job " + job + " exited with " + code + " in " + millis + "ms: " + String.join(" ", args));
+            }
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(code);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client has gone, nothing to report to
+        }
+    }
+
+    /**
+     * Stream that sends what is written as frames of one kind
+     */
+    private static final class Frames extends OutputStream {
+        private final DataOutputStream out;
+        private final int kind;
+
+        Frames(DataOutputStream out, int kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Send arguments to the daemon & print what it sends back, the arguments are run here if no daemon is running
+     *
+     * @param daemonFile file written by the daemon
+     * @param args       the arguments
+     * @param stdout     stream for progress messages
+     * @param stderr     stream for warnings & failures
+     * @return the exit code
+     */
+    static int forward(File daemonFile, String[] args, PrintStream stdout, PrintStream stderr) {
+        String[] state = readDaemonFile(daemonFile);
+        Socket socket = state != null ? connect(state[0]) : null;
+        if (socket == null)
+            return Main.run(args, null, stdout, stderr, null);
+        return send(socket, state[1], args, stdout, stderr);
+    }
+
+    /**
+     * Ask the daemon to stop
+     *
+     * @param daemonFile file written by the daemon
+     * @param stdout     stream for progress messages
+     * @param stderr     stream for warnings & failures
+     * @return the exit code
+     */
+    static int stop(File daemonFile, PrintStream stdout, PrintStream stderr) {
+        String[] state = readDaemonFile(daemonFile);
+        Socket socket = state != null ? connect(state[0]) : null;
+        if (socket == null) {
+            stderr.println("No daemon is running for " + daemonFile);
+            return 1;
+        }
+        return send(socket, state[1], new String[]{STOP}, stdout, stderr);
+    }
+
+    /**
+     * @return a socket connected to the daemon, or null if it can not be reached
+     */
+    private static Socket connect(String port) {
+        try {
+            return new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(port));
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Send a job & copy what comes back until the exit code, with the stats of the job, the socket is closed
+     * afterwards
+     */
+    private static int send(Socket socket, String token, String[] args, PrintStream stdout, PrintStream stderr) {
+        try (Socket s = socket) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeUTF(PROTOCOL);
+            out.writeUTF(token);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            while (true) {
+                int kind = in.readByte();
+                if (kind == EXIT)
+                    return in.readInt();
+                if (kind == STATS) {
+                    long millis = in.readLong();
+                    long modified = in.readLong();
+                    stdout.println("Daemon:    " + modified + " classes modified in " + millis + "ms");
+                    continue;
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (kind == STDERR ? stderr : stdout).write(bytes);
+                (kind == STDERR ? stderr : stdout).flush();
+            }
+        } catch (IOException e) {
+            stderr.println("Lost connection to the daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * @return the port & token, or null if the file does not exist or is not valid
+     */
+    private static String[] readDaemonFile(File daemonFile) {
+        try {
+            List<String> lines = Files.readAllLines(daemonFile.toPath(), StandardCharsets.UTF_8);
+            String[] state = lines.isEmpty() ? new String[0] : lines.get(0).trim().split(" ");
+            return state.length == 2 ? state : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the daemon file so only the user can read it, it is moved into place so clients see all or nothing
+     */
+    private void writeDaemonFile(String state) {
+        File dir = daemonFile.getAbsoluteFile().getParentFile();
+        File temp = null;
+        try {
+            temp = File.createTempFile(daemonFile.getName(), ".tmp", dir);
+            try {
+                Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.setReadable(false, false);
+                //noinspection ResultOfMethodCallIgnored
+                temp.setReadable(true, true);
+            }
+            Files.write(temp.toPath(), (state + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), daemonFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temp != null)
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            throw new CtxException("Could not write daemon file: " + daemonFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Remove the daemon file unless another daemon has replaced it
+     */
+    private void removeDaemonFile(String token) {
+        String[] state = readDaemonFile(daemonFile);
+        if (state != null && state[1].equals(token))
+            //noinspection ResultOfMethodCallIgnored
+            daemonFile.delete();
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Deflater;
+
+/**
+ * Utility for shading all classes in a directory tree, such as the output directory of a build, into another
+ * directory or into a jar. Classes are identified as files with a name ending in ".class" and are updated as for
+ * {@link JarShade}.
+ * <p/>
+ * The tree is walked and files are handled on a pool of threads. When writing a directory, files that are not
+ * changed are hard linked into the output, or copied if the file system can't link them. When writing a jar, entries
+ * are written in name order so the output does not depend on the number of threads.
+ */
+class DirShade {
+    private final Path inputDir;
+    private boolean compact = false;
+    private boolean relocateBytecode = false;
+    private int threads = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private ShadeCache cache = null;
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+    private long modified = 0;
+
+    /**
+     * Files handled ahead of the jar writer, per thread
+     */
+    private static final int FILES_PER_THREAD = 4;
+
+    /**
+     * Outcome of handling a file, ready for writing
+     */
+    private static final class Result {
+        final String path;
+        final String name;
+        final long time;
+        final byte[] bytes;
+        final ZipWriter.Compressed data;
+        final Exception failure;
+
+        /**
+         * @param path  path of the file relative to the input, using '/'
+         * @param name  path to write to relative to the output, using '/'
+         * @param bytes the updated file, or null if unchanged
+         * @param data  the data to write to a jar, or null if not writing a jar
+         */
+        Result(String path, String name, long time, byte[] bytes, ZipWriter.Compressed data, Exception failure) {
+            this.path = path;
+            this.name = name;
+            this.time = time;
+            this.bytes = bytes;
+            this.data = data;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Construct passing existing directory
+     *
+     * @param dir the directory
+     * @throws CtxException if dir is not a directory
+     */
+    public DirShade(File dir) {
+        if (!dir.isDirectory())
+            throw new CtxException("Not a directory: " + dir.getAbsolutePath());
+        inputDir = dir.toPath();
+    }
+
+    /**
+     * Set if signatures should be compacted after being updated
+     *
+     * @param compact true to drop entries that are no longer used from updated signatures
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Set if class names in bytecode should be relocated as well as those in signatures, classes are then written
+     * to the relocated path of their name
+     *
+     * @param relocateBytecode true to relocate bytecode
+     */
+    public void setRelocateBytecode(boolean relocateBytecode) {
+        this.relocateBytecode = relocateBytecode;
+    }
+
+    /**
+     * Set the number of threads used to walk the tree & handle files
+     *
+     * @param threads the number of threads
+     * @throws CtxException if threads is less than 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new CtxException("Number of threads must be at least 1: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Set the compression level used when writing a jar, with 0 all entries are stored uncompressed
+     *
+     * @param level the level, 0-9 or -1 for the default level
+     * @throws CtxException if the level is not valid
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new CtxException("Compression level should be between 0 and 9: " + level);
+        this.level = level;
+    }
+
+    /**
+     * Set a cache of the outcome of shading classes, classes found in the cache are not parsed
+     *
+     * @param cache the cache, or null to not use one
+     */
+    public void setCache(ShadeCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set where messages are printed, by default the console
+     *
+     * @param out stream for progress messages
+     * @param err stream for warnings & failures
+     */
+    public void setOutput(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Test if an output location is for a jar rather than a directory
+     *
+     * @param out the output location
+     * @return true if the name ends with ".jar"
+     */
+    static boolean isJar(File out) {
+        return out.getName().toLowerCase(Locale.ROOT).endsWith(".jar");
+    }
+
+    /**
+     * Copy the tree to a new directory, or a jar if the name ends with ".jar", updating classes as needed. Files are
+     * added to an existing directory, replacing those of the same name.
+     *
+     * @param out         location of the new directory or jar
+     * @param relocations Absolute namespaces to change and what to change them to
+     * @param verbose     If true, extra debug is printed
+     * @throws CtxException if the tree can not be read or the output can not be written
+     */
+    public void writeTo(File out, NamespaceTrie relocations, boolean verbose) {
+        Path output = out.toPath().toAbsolutePath().normalize();
+        if (output.startsWith(inputDir.toAbsolutePath().normalize()))
+            throw new CtxException("Output can not be inside the input directory: " + out.getAbsolutePath());
+
+        ClassShader shader = new ClassShader(relocations, compact, relocateBytecode, cache);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<String> paths = pool.invoke(new Walk(inputDir, "", err));
+            Collections.sort(paths);
+            if (isJar(out))
+                writeJar(pool, out, paths, shader, verbose);
+            else
+                writeDirectory(pool, output, paths, shader, verbose);
+        } finally {
+            pool.shutdownNow();
+        }
+        shader.finish(this.out, verbose);
+        modified = shader.modified();
+    }
+
+    /**
+     * @return the number of classes updated by the last {@link #writeTo(File, NamespaceTrie, boolean)}
+     */
+    long modified() {
+        return modified;
+    }
+
+    /**
+     * List a directory, forking a task for each sub-directory. Paths are relative to the input using '/',
+     * directories end with '/'.
+     */
+    private static final class Walk extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String prefix;
+        private final PrintStream err;
+
+        Walk(Path dir, String prefix, PrintStream err) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.err = err;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> paths = new ArrayList<>();
+            List<Walk> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    String name = prefix + path.getFileName().toString();
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (attributes.isDirectory()) {
+                        // Linked directories could form a cycle
+                        if (Files.isSymbolicLink(path)) {
+                            err.println("Skipping linked directory " + path);
+                            continue;
+                        }
+                        paths.add(name + "/");
+                        Walk child = new Walk(path, name + "/", err);
+                        child.fork();
+                        children.add(child);
+                    } else if (attributes.isRegularFile()) {
+                        paths.add(name);
+                    }
+                }
+            } catch (IOException e) {
+                throw new CtxException("Could not list directory: " + dir, e);
+            }
+            for (Walk child : children) {
+                paths.addAll(child.join());
+            }
+            return paths;
+        }
+    }
+
+    /**
+     * Read a file & update it if needed, this may be called from any thread
+     *
+     * @param path   path of the file relative to the input
+     * @param jos    writer to compress data for, or null when writing a directory
+     * @param shader shader for classes
+     * @return the file to write
+     * @throws CtxException if the file can not be read
+     */
+    private Result transform(String path, ZipWriter jos, ClassShader shader) {
+        Path file = inputDir.resolve(path);
+        long time = file.toFile().lastModified();
+        boolean isClass = !path.endsWith("/") && path.endsWith(".class");
+        if (!isClass && jos == null)
+            return new Result(path, path, time, null, null, null);
+
+        byte[] original;
+        try {
+            original = path.endsWith("/") ? new byte[0] : Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new CtxException("Could not read file: " + file, e);
+        }
+        ClassShader.Outcome outcome = isClass ? shader.shade(path, original) : new ClassShader.Outcome(path, null, null);
+        ZipWriter.Compressed data = null;
+        if (jos != null)
+            data = jos.compress(outcome.name, outcome.bytes != null ? outcome.bytes : original);
+        return new Result(path, outcome.name, time, outcome.bytes, data, outcome.failure);
+    }
+
+    private void report(Result result, boolean verbose) {
+        if (result.failure != null) {
+            err.println("Failed to shade " + result.path);
+            result.failure.printStackTrace(err);
+        } else if (result.bytes != null && verbose) {
+            out.println("Modified:  " + result.path);
+        }
+    }
+
+    /**
+     * Write all files into a jar, keeping a bounded window of files being handled written as each reaches the head.
+     * The jar is dropped if any of it can't be written.
+     */
+    private void writeJar(ForkJoinPool pool, File out, List<String> paths, ClassShader shader, boolean verbose) {
+        ZipWriter jos = new ZipWriter(out);
+        jos.setLevel(level);
+        ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+        boolean completed = false;
+        try {
+            for (String path : paths) {
+                pending.add(pool.submit(() -> transform(path, jos, shader)));
+                if (pending.size() >= threads * FILES_PER_THREAD)
+                    write(jos, JarShade.await(pending.remove()), verbose);
+            }
+            while (!pending.isEmpty()) {
+                write(jos, JarShade.await(pending.remove()), verbose);
+            }
+            jos.close();
+            completed = true;
+        } finally {
+            if (!completed) {
+                for (Future<Result> result : pending) {
+                    result.cancel(true);
+                }
+                jos.abort();
+            }
+        }
+    }
+
+    private void write(ZipWriter jos, Result result, boolean verbose) {
+        report(result, verbose);
+        jos.write(result.name, result.time, result.data);
+    }
+
+    /**
+     * Write all files into a directory, directories are created first so files can be written in any order
+     */
+    private void writeDirectory(ForkJoinPool pool, Path out, List<String> paths, ClassShader shader,
+                                boolean verbose) {
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+        for (String path : paths) {
+            if (path.endsWith("/")) {
+                createDirectories(out.resolve(path));
+            } else {
+                tasks.add(pool.submit(() -> {
+                    Result result = transform(path, null, shader);
+                    write(out, result);
+                    return result;
+                }));
+            }
+        }
+        for (ForkJoinTask<Result> task : tasks) {
+            report(JarShade.await(task), verbose);
+        }
+    }
+
+    /**
+     * Write a file into the output, unchanged files are linked or copied. An existing file is removed first as it
+     * may be a link to an input file.
+     */
+    private void write(Path out, Result result) {
+        Path target = out.resolve(result.name);
+        try {
+            if (result.bytes != null)
+                createDirectories(target.getParent());
+            Files.deleteIfExists(target);
+            if (result.bytes != null) {
+                Files.write(target, result.bytes, StandardOpenOption.CREATE_NEW);
+            } else {
+                Path source = inputDir.resolve(result.path);
+                if (!link(target, source))
+                    copy(source, target);
+            }
+        } catch (IOException e) {
+            throw new CtxException("Could not write file: " + target, e);
+        }
+    }
+
+    private static boolean link(Path target, Path source) {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static void copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel to = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, to);
+            }
+        }
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+
+    private static void createDirectories(Path dir) {
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new CtxException("Could not create directory: " + dir, e);
+        }
+    }
+}
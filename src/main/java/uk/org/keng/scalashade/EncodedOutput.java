@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Stream that applies the {@link Encoding} as bytes are written to it. The encoded chars are placed straight into a
+ * buffer sized for the expected number of bytes, so a signature can be written out without first collecting the raw
+ * bytes. Unlike ByteArrayOutputStream this is not synchronized and does not grow.
+ */
+class EncodedOutput extends OutputStream {
+
+    private final char[] _encoded;
+    private int _at = 0;
+    private long _bits = 0;
+    private int _pending = 0;
+    private int _remaining;
+
+    /**
+     * Create for a known number of raw bytes
+     *
+     * @param length how many bytes will be written
+     */
+    EncodedOutput(int length) {
+        _encoded = new char[Encoding.encodeLength(length)];
+        _remaining = length;
+    }
+
+    /**
+     * @throws CtxException if more bytes are written than expected
+     */
+    @Override
+    public void write(int b) {
+        if (_remaining == 0)
+            throw new CtxException("Encoded signature is larger than the expected size");
+        _remaining--;
+        _bits |= (b & 0xffL) << (_pending << 3);
+        if (++_pending == 7) {
+            Encoding.writeChars(_bits, _encoded, _at, 8);
+            _at += 8;
+            _bits = 0;
+            _pending = 0;
+        }
+    }
+
+    /**
+     * @throws CtxException if more bytes are written than expected
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (len > _remaining)
+            throw new CtxException("Encoded signature is larger than the expected size");
+
+        // Top up any partial block
+        while (_pending != 0 && len > 0) {
+            write(b[off++]);
+            len--;
+        }
+
+        // Whole blocks direct from input
+        while (len >= 7) {
+            Encoding.writeChars(Encoding.readBytes(b, off, 7), _encoded, _at, 8);
+            _at += 8;
+            off += 7;
+            len -= 7;
+            _remaining -= 7;
+        }
+
+        // Leave remainder pending
+        while (len > 0) {
+            write(b[off++]);
+            len--;
+        }
+    }
+
+    /**
+     * Complete the encoding and split it into constant sized chunks, see {@link Encoding#split(char[])}
+     *
+     * @return the encoded chunks
+     * @throws CtxException if the number of bytes written was not as expected
+     */
+    List<String> toChunks() {
+        if (_pending > 0) {
+            Encoding.writeChars(_bits, _encoded, _at, _pending + 1);
+            _at += _pending + 1;
+            _bits = 0;
+            _pending = 0;
+        }
+        if (_at != _encoded.length)
+            throw new CtxException("Encoded signature is not the expected size");
+        return Encoding.split(_encoded);
+    }
+}
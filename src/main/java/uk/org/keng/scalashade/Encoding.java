@@ -16,6 +16,10 @@
 
 package uk.org.keng.scalashade;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This encoding/decoding is based on SIP-10.
  * http://www.scala-lang.org/old/sites/default/files/sids/dubochet/Mon,%202010-05-31,%2015:25/Storage%20of%20pickled%20Scala%20signatures%20in%20class%20files.pdf
@@ -36,6 +40,11 @@ package uk.org.keng.scalashade;
 
 class Encoding {
 
+    /**
+     * Limit on the modified UTF-8 size of a CONSTANT_Utf8 entry
+     */
+    static final int MAX_CHUNK_SIZE = 65535;
+
     /**
      * Test a string to see if it is a valid encoding, i.e. has characters in correct range
      *
@@ -59,50 +68,152 @@ class Encoding {
      * @return encoding of raw
      */
     public static String encode(byte[] raw) {
+        return new String(encode(raw, 0, raw.length));
+    }
+
+    /**
+     * Encode a range of bytes into a new char array using the scheme. Input is processed in blocks of 7 bytes which
+     * are packed into a long and written back out as 8 7-bit characters.
+     *
+     * @param raw    input bytes
+     * @param offset start of range to encode
+     * @param length number of bytes to encode
+     * @return encoding of the range, exactly encodeLength(length) chars
+     */
+    static char[] encode(byte[] raw, int offset, int length) {
+        char[] encoded = new char[encodeLength(length)];
+        int in = offset;
+        int out = 0;
 
-        // Convert to 7-bit
-        byte[] encoded = new byte[encodeLength(raw.length)];
-        for (int i = 0; i < raw.length; i++) {
-            encodeByte(encoded, i, raw[i]);
+        // Whole blocks
+        int end = offset + length;
+        int wholeEnd = end - (length % 7);
+        while (in < wholeEnd) {
+            writeChars(readBytes(raw, in, 7), encoded, out, 8);
+            in += 7;
+            out += 8;
         }
 
-        // Encode that in String
-        StringBuilder sb = new StringBuilder();
-        for (byte b : encoded) {
-            sb.append((char) ((b + 1) & 0x7F));
+        // Trailing partial block, n bytes need n+1 chars
+        int rem = end - in;
+        if (rem > 0) {
+            writeChars(readBytes(raw, in, rem), encoded, out, rem + 1);
         }
-        return sb.toString();
+        return encoded;
     }
 
     /**
      * Decode a string back to a byte representation
      *
      * @param encoded the encoded bytes
-     * @return the raw bytes
+     * @return the raw bytes, or null if the string contains illegal characters
+     * @throws CtxException if the string length can not be correct for an encoded buffer
      */
     public static byte[] decode(String encoded) {
+        return decode(Collections.singletonList(encoded));
+    }
 
-        // Convert to byte array while validating and removing outer coding
-        byte[] input = new byte[encoded.length()];
-        int byteIndex = 0;
-        for (int charIndex = 0; charIndex < encoded.length(); charIndex++) {
-            char c = encoded.charAt(charIndex);
-            if (c < 128) {
-                input[byteIndex++] = (byte) ((c - 1) & 0x7F);
-            } else {
-                // Illegal char
-                return null;
+    /**
+     * Decode a sequence of strings, as found in a ScalaLongSignature, back to a byte representation. The chunks are
+     * treated as if concatenated but are read in place, so the only allocation is the output buffer which is sized up
+     * front from the total chunk length. Blocks may straddle a chunk boundary.
+     *
+     * @param chunks the encoded bytes
+     * @return the raw bytes, or null if a chunk contains illegal characters
+     * @throws CtxException if the total length can not be correct for an encoded buffer
+     */
+    static byte[] decode(List<String> chunks) {
+
+        // Illegal chars take precedence over a bad length
+        int length = 0;
+        for (String chunk : chunks) {
+            length += chunk.length();
+        }
+        if (length % 8 == 1) {
+            for (String chunk : chunks) {
+                if (!isValidEncoding(chunk))
+                    return null;
             }
         }
 
-        // Convert back to 8-bit
-        byte[] output = new byte[decodeLength(byteIndex)];
-        for (int i = 0; i < output.length; i++) {
-            output[i] = decodeByte(input, i);
+        byte[] output = new byte[decodeLength(length)];
+        int out = 0;
+        long carry = 0;
+        int carried = 0;
+        for (String chunk : chunks) {
+            int chunkLength = chunk.length();
+            int in = 0;
+
+            // Complete any block started in an earlier chunk
+            if (carried > 0) {
+                int take = Math.min(8 - carried, chunkLength);
+                long bits = readChars(chunk, 0, take);
+                if (bits < 0)
+                    return null;
+                carry |= bits << (carried * 7);
+                carried += take;
+                in = take;
+                if (carried < 8)
+                    continue;
+                writeBytes(carry, output, out, 7);
+                out += 7;
+                carry = 0;
+                carried = 0;
+            }
+
+            // Whole blocks
+            int wholeEnd = in + ((chunkLength - in) & ~7);
+            while (in < wholeEnd) {
+                long bits = readChars(chunk, in, 8);
+                if (bits < 0)
+                    return null;
+                writeBytes(bits, output, out, 7);
+                in += 8;
+                out += 7;
+            }
+
+            // Carry what is left into the next chunk
+            if (in < chunkLength) {
+                carry = readChars(chunk, in, chunkLength - in);
+                if (carry < 0)
+                    return null;
+                carried = chunkLength - in;
+            }
+        }
+
+        // Trailing partial block, n chars hold n-1 bytes
+        if (carried > 0) {
+            writeBytes(carry, output, out, carried - 1);
         }
         return output;
     }
 
+    /**
+     * Split an encoding into strings that each fit in a CONSTANT_Utf8 entry. The class file stores strings in
+     * modified UTF-8 where the zero char takes two bytes, so chunks are limited by that size rather than the number of
+     * chars. This follows the split the compiler uses in BCodeHelpers, so a single chunk means the encoding can be
+     * stored as a ScalaSignature and more than one needs a ScalaLongSignature.
+     *
+     * @param encoded the encoded chars
+     * @return the chunks, there is always at least one
+     */
+    static List<String> split(char[] encoded) {
+        List<String> chunks = new ArrayList<>(1 + encoded.length / MAX_CHUNK_SIZE);
+        int start = 0;
+        int size = 0;
+        for (int at = 0; at < encoded.length; at++) {
+            int charSize = encoded[at] == 0 ? 2 : 1;
+            if (size + charSize >= MAX_CHUNK_SIZE) {
+                chunks.add(new String(encoded, start, at - start));
+                start = at;
+                size = 0;
+            }
+            size += charSize;
+        }
+        chunks.add(new String(encoded, start, encoded.length - start));
+        return chunks;
+    }
+
     /**
      * Calculate the length of an 7-to-8 bit encoding from the input. Note: This is just
      * the 7-to-8 bit encoding & does not take into account the two byte encoding used
@@ -111,7 +222,7 @@ class Encoding {
      * @param inputLength how many bytes are to be encoded
      * @return size of resulting encoding
      */
-    private static int encodeLength(int inputLength) {
+    static int encodeLength(int inputLength) {
         int rem = (inputLength % 7);
         return ((inputLength / 7) * 8) + (rem > 0 ? rem + 1 : 0);
     }
@@ -125,7 +236,7 @@ class Encoding {
      * @return size of decoded bytes
      * @throws CtxException if inputLength can not be correct for an encoded buffer
      */
-    private static int decodeLength(int inputLength) {
+    static int decodeLength(int inputLength) {
         int rem = (inputLength % 8);
         if (rem == 1)
             throw new CtxException("Input length is not valid for encoded data");
@@ -133,46 +244,65 @@ class Encoding {
     }
 
     /**
-     * Encode a byte into an encoded byte array
+     * Pack up to 7 bytes into a long, first byte in the lowest bits.
      *
-     * @param buffer the encoded data, this must be at least encodeLength(input.length) in size
-     * @param at     the ordinal of the 8-bit value to be set, 0 to input.length
-     * @param value  the value to encode into the array
+     * @param buffer the bytes
+     * @param at     index of first byte
+     * @param count  number of bytes to pack, 0 to 7
+     * @return the packed bits
      */
-    private static void encodeByte(byte[] buffer, int at, byte value) {
-        // Calc encoded start byte and how many low bits encoded
-        // High bits are in following byte
-        int lowBits = 7 - (at % 7);
-        int startByte = (at / 7) * 8 + (at % 7);
-
-        // Update buffer using a mask that excludes low bits & top bit which is dead
-        byte lowMask = (byte) (0x7f & ~((1 << (7 - lowBits)) - 1));
-        byte low = (byte) ((value << (7 - lowBits)) & lowMask);
-        buffer[startByte] = (byte) ((buffer[startByte] & ~lowMask) + low);
-
-        // Same again for high bits but into next buffer byte
-        byte highMask = (byte) (0x7f & ~((1 << (8 - lowBits)) - 1));
-        byte high = (byte) (0x7f & ((value >> lowBits) & ~highMask));
-        buffer[startByte + 1] = (byte) ((buffer[startByte + 1] & highMask) + high);
+    static long readBytes(byte[] buffer, int at, int count) {
+        long bits = 0;
+        for (int i = 0; i < count; i++) {
+            bits |= (buffer[at + i] & 0xffL) << (i << 3);
+        }
+        return bits;
     }
 
     /**
-     * Extract a byte in an encoded byte array.
+     * Unpack bytes from a long, lowest bits first.
      *
-     * @param buffer the encoded data
-     * @param at     the ordinal of the 8-byte value to be extracted, 0 to decodeLength(buffer)
-     * @return the extracted byte
+     * @param bits   the packed bits
+     * @param buffer where to write
+     * @param at     index of first byte to write
+     * @param count  number of bytes to unpack, 0 to 7
      */
-    private static byte decodeByte(byte[] buffer, int at) {
-        // Calc encoded start byte and how many low bits encoded
-        // High bits are in following byte
-        int lowBits = 7 - (at % 7);
-        int startByte = (at / 7) * 8 + (at % 7);
-
-        // Extract low bit and high bits, shift, and bring back together
-        byte low = (byte) (buffer[startByte] >> (7 - lowBits));
-        byte high = (byte) (buffer[startByte + 1] << lowBits);
-        return (byte) (high + low);
+    static void writeBytes(long bits, byte[] buffer, int at, int count) {
+        for (int i = 0; i < count; i++) {
+            buffer[at + i] = (byte) (bits >>> (i << 3));
+        }
     }
-}
 
+    /**
+     * Pack up to 8 encoded characters into a long, removing the outer +1 coding. First character in the lowest bits.
+     *
+     * @param encoded the encoded characters
+     * @param at      index of first character
+     * @param count   number of characters to pack, 0 to 8
+     * @return the packed bits, or -1 if any character was not valid
+     */
+    static long readChars(CharSequence encoded, int at, int count) {
+        long bits = 0;
+        int seen = 0;
+        for (int i = 0; i < count; i++) {
+            char c = encoded.charAt(at + i);
+            seen |= c;
+            bits |= (long) ((c - 1) & 0x7f) << (i * 7);
+        }
+        return (seen & ~0x7f) == 0 ? bits : -1;
+    }
+
+    /**
+     * Unpack 7-bit values from a long into encoded characters, applying the outer +1 coding.
+     *
+     * @param bits    the packed bits
+     * @param encoded where to write
+     * @param at      index of first character to write
+     * @param count   number of characters to unpack, 0 to 8
+     */
+    static void writeChars(long bits, char[] encoded, int at, int count) {
+        for (int i = 0; i < count; i++) {
+            encoded[at + i] = (char) (((bits >>> (i * 7)) + 1) & 0x7f);
+        }
+    }
+}
@@ -31,8 +31,7 @@ class FileUtil {
      * @return true if file starts with Java byte code signature
      */
     public static boolean isClass(File file) {
-        try {
-            DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
             return in.readInt() == 0xcafebabe;
         } catch (Exception e) {
             // Ignore
@@ -47,7 +46,7 @@ class FileUtil {
      */
     public static boolean isJar(File file) {
         try {
-            new JarFile(file);
+            new JarFile(file).close();
             return true;
         } catch (Exception e) {
             // Ignore
@@ -55,6 +54,39 @@ class FileUtil {
         return false;
     }
 
+    /**
+     * Resolve a path given by a user
+     * @param dir directory relative paths are resolved against, or null for the working directory
+     * @param path the path
+     * @return the file
+     */
+    public static File resolve(File dir, String path) {
+        File file = new File(path);
+        return dir == null || file.isAbsolute() ? file : new File(dir, path);
+    }
+
+    /**
+     * Read all of a stream, the stream is closed afterwards
+     * @param in the stream to read
+     * @param sizeHint expected number of bytes, or -1 if not known
+     * @return the bytes read
+     * @throws IOException
+     */
+    public static byte[] readFully(InputStream in, long sizeHint) throws IOException {
+        try {
+            int initial = sizeHint >= 0 && sizeHint < Integer.MAX_VALUE - 8 ? (int) sizeHint : 8192;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, initial));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Copy a file to a new location, will overwrite existing file if can
      * @param sourceFile the file to copy
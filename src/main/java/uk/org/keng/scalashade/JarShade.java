@@ -17,19 +17,93 @@
 package uk.org.keng.scalashade;
 
 import java.io.*;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
 
 /**
  * Utility for shading all classes in a JAR file. Classes are identified as entries with a
  * name ending in ".class". During saving classes containing a @SparkSignature are updated
  * if required, all other classes and JAR contents are unchanged.
+ * <p/>
+ * Entries may be read and transformed on a pool of threads, they are always written by a single writer in the
+ * order of the input jar so the output does not depend on the number of threads. Entries that are not changed are
+ * copied as their original compressed data, only updated classes are compressed again. Compression is part of the
+ * transform so it is also spread over the threads.
+ * <p/>
+ * Jars nested in the jar, such as the libraries of a Spring Boot style fat jar, can be shaded as well. A nested jar
+ * is read & rewritten in memory by the thread that transforms it, to a limited depth. The memory held for nested jars,
+ * from when they are read until they are written, is limited across all the threads. Memory is reserved in entry order
+ * by the writer, so whether a nested jar fits does not depend on the number of threads. Nested jars that are not
+ * changed are copied as their original data, those that are keep their name so are stored uncompressed as such
+ * archives expect.
  */
 class JarShade {
     private final String inputJarPath;
-    private final JarFile jarFile;
+    private final ZipReader jarFile;
+    private final String entryPrefix;
+    private boolean compact = false;
+    private boolean relocateBytecode = false;
+    private int threads = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private ShadeCache cache = null;
+    private ExecutorService pool = null;
+    private int nestedDepth = 0;
+    private long nestedMemory = DEFAULT_NESTED_MEMORY;
+    private Semaphore nestedBudget = null;
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+    private long modified = 0;
+
+    /**
+     * Entries transformed ahead of the writer, per thread
+     */
+    private static final int ENTRIES_PER_THREAD = 4;
+
+    /**
+     * Default limit on the memory held for nested jars while shading a jar
+     */
+    static final long DEFAULT_NESTED_MEMORY = 256L << 20;
+
+    /**
+     * Room allowed for a rewritten nested jar to grow past the size of the original
+     */
+    private static final int NESTED_SLACK = 1 << 16;
+
+    /**
+     * Outcome of transforming an entry, ready for writing
+     */
+    private static final class Result {
+        final ZipReader.Entry entry;
+        final String name;
+        final ByteBuffer[] raw;
+        final ZipWriter.Compressed data;
+        final boolean modified;
+        final Exception failure;
+        final int reserved;
+
+        /**
+         * @param raw      compressed data of the original, copied if data is null
+         * @param data     new data, or null if the original can be copied
+         * @param reserved KB of the nested jar budget held until the entry is written
+         */
+        Result(ZipReader.Entry entry, String name, ByteBuffer[] raw, ZipWriter.Compressed data, boolean modified,
+               Exception failure, int reserved) {
+            this.entry = entry;
+            this.name = name;
+            this.raw = raw;
+            this.data = data;
+            this.modified = modified;
+            this.failure = failure;
+            this.reserved = reserved;
+        }
+    }
 
     /**
      * Construct passing existing jar
@@ -38,104 +112,425 @@ class JarShade {
      * @throws CtxException
      */
     public JarShade(File jar) {
-        try {
-            inputJarPath = jar.getAbsolutePath();
-            jarFile = new JarFile(jar);
-        } catch (IOException e) {
-            throw new CtxException("Could not open jar for reading: " + jar, e);
-        }
+        inputJarPath = jar.getAbsolutePath();
+        jarFile = new ZipReader(jar);
+        entryPrefix = "";
+    }
+
+    /**
+     * Construct for a jar nested in another
+     *
+     * @param path   path of the jar, for messages
+     * @param jar    the jar
+     * @param prefix prefix for the names of entries in messages
+     */
+    private JarShade(String path, ZipReader jar, String prefix) {
+        inputJarPath = path;
+        jarFile = jar;
+        entryPrefix = prefix;
+    }
+
+    /**
+     * Set if signatures should be compacted after being updated
+     *
+     * @param compact true to drop entries that are no longer used from updated signatures
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Set if class names in bytecode should be relocated as well as those in signatures, classes are then written
+     * to the relocated path of their name
+     *
+     * @param relocateBytecode true to relocate bytecode
+     */
+    public void setRelocateBytecode(boolean relocateBytecode) {
+        this.relocateBytecode = relocateBytecode;
+    }
+
+    /**
+     * Set the number of threads used to read & transform entries, with 1 all work is done on the calling thread
+     *
+     * @param threads the number of threads
+     * @throws CtxException if threads is less than 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new CtxException("Number of threads must be at least 1: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Set the compression level for entries that are written, unchanged entries are copied as they are unless the
+     * level is 0 in which case all entries are stored uncompressed
+     *
+     * @param level the level, 0-9 or -1 for the default level
+     * @throws CtxException if the level is not valid
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new CtxException("Compression level should be between 0 and 9: " + level);
+        this.level = level;
+    }
+
+    /**
+     * Set a cache of the outcome of shading classes, classes found in the cache are not parsed
+     *
+     * @param cache the cache, or null to not use one
+     */
+    public void setCache(ShadeCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set a pool to transform entries on, shared with other work. The pool is not shut down after writing and
+     * entries are always transformed on it, the number of threads then sets how far ahead of the writer it works.
+     *
+     * @param pool the pool, or null to create one when needed
+     */
+    public void setPool(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set where messages are printed, by default the console
+     *
+     * @param out stream for progress messages
+     * @param err stream for warnings & failures
+     */
+    public void setOutput(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Set how deep to shade jars nested in the jar, entries with a name ending in ".jar". Nested jars are handled in
+     * memory, the limit covers the copy of each nested jar being shaded and its output until it is written, across
+     * all threads. A nested jar that can't fit the limit, or whose output outgrows what was reserved for it, is copied
+     * unchanged. When jars nested in nested jars are shaded, each nested jar reserves all of the limit so those inside
+     * it have what it leaves.
+     *
+     * @param depth  levels of nesting to shade, 0 to copy nested jars unchanged
+     * @param memory limit on the memory held for nested jars while shading the jar, in bytes
+     * @throws CtxException if depth or memory is negative
+     */
+    public void setNested(int depth, long memory) {
+        if (depth < 0)
+            throw new CtxException("Nested jar depth should not be negative: " + depth);
+        if (memory < 0)
+            throw new CtxException("Nested jar memory limit should not be negative: " + memory);
+        this.nestedDepth = depth;
+        this.nestedMemory = memory;
     }
 
     /**
      * Copy contents of jar to new location with updates classes as needed.
      *
+     * @param jar         location of new jar, will be created/overwritten as needed
+     * @param relocations Absolute namespaces to change and what to change them to
+     * @param verbose     If true, extra debug is printed
+     */
+    public void writeTo(File jar, NamespaceTrie relocations, boolean verbose) {
+        ClassShader shader = new ClassShader(relocations, compact, relocateBytecode, cache);
+        writeTo(jar, shader, verbose);
+        shader.finish(out, verbose);
+        modified = shader.modified();
+    }
+
+    /**
+     * @return the number of classes updated by the last {@link #writeTo(File, NamespaceTrie, boolean)}, including those of nested jars
+     */
+    long modified() {
+        return modified;
+    }
+
+    /**
+     * Copy contents of jar to new location with updates classes as needed, the compact, bytecode & cache settings
+     * are those of the shader
+     *
      * @param jar     location of new jar, will be created/overwritten as needed
-     * @param from    Absolute namespace to change
-     * @param to      Absolute namespace to use instead
+     * @param shader  shader for classes, which may be shared with other jars
      * @param verbose If true, extra debug is printed
      */
-    public void writeTo(File jar, String from, String to, boolean verbose) {
+    void writeTo(File jar, ClassShader shader, boolean verbose) {
+        nestedBudget = new Semaphore(kb(nestedMemory));
+        writeTo(new ZipWriter(jar), shader, verbose);
+    }
 
-        // Open new JAR
-        JarOutputStream jos;
-        try {
-            jos = new JarOutputStream(new FileOutputStream(jar));
-        } catch (IOException e) {
-            throw new CtxException("Could not open jar for writing: " + jar, e);
-        }
+    /**
+     * Write the contents of the jar with classes updated as needed
+     *
+     * @return the number of entries that were modified
+     */
+    private int writeTo(ZipWriter jos, ClassShader shader, boolean verbose) {
 
-        // Iterate over existing jar
-        Enumeration<JarEntry> entries = jarFile.entries();
-        while (entries.hasMoreElements()) {
-            JarEntry entry = entries.nextElement();
+        // Set up new JAR
+        jos.setComment(jarFile.comment());
+        jos.setLevel(level);
 
-            // Directories are create the same
-            if (entry.isDirectory()) {
-                try {
-                    jos.putNextEntry(new JarEntry(entry.getName()));
-                    jos.closeEntry();
-                } catch (IOException e) {
-                    throw new CtxException("Could not write jar directory entry for " + entry.getName() + " in: " + jar.getAbsolutePath());
+        // Iterate over existing jar, the new jar is dropped if any of it can't be written
+        int modified = 0;
+        boolean completed = false;
+        try {
+            if (threads == 1 && this.pool == null) {
+                for (ZipReader.Entry entry : jarFile.entries()) {
+                    int reserved = reserve(nestedCost(entry));
+                    if (write(jos, transform(entry, jos, shader, verbose, reserved), verbose))
+                        modified++;
                 }
             } else {
-
-                // Open other entries for reading
-                InputStream in;
+                // Keep a bounded window of entries being transformed, written as each reaches the head
+                ExecutorService pool = this.pool != null ? this.pool : Executors.newFixedThreadPool(threads);
+                ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
                 try {
-                    in = jarFile.getInputStream(entry);
-                } catch (IOException e) {
-                    throw new CtxException("Could not read entry for " + entry.getName() + " in: " + inputJarPath, e);
-                }
-
-                if (entry.getName().endsWith(".class")) {
-                    // If we have a class try process @ScalaSignature
-                    try {
-                        ScalaSigClass sigClass = new ScalaSigClass(entry.getName(), in);
-                        ScalaSig sig = sigClass.getSig();
-                        if (sig != null) {
-                        //if (sig != null && sig.replace(from, to) > 0) {
-                            // This one need re-writing, swap input stream to updated version
-                            in.close();
-                            in = new ByteArrayInputStream(sigClass.getBytes());
-                            if (verbose)
-                                System.out.println("Modified:  " + entry.getName());
-                        } else {
-                            // Nothing to change here, re-open input stream as signature processing
-                            // may have consumed some of the stream
-                            try {
-                                in.close();
-                                in = jarFile.getInputStream(entry);
-                            } catch (IOException e) {
-                                throw new CtxException("Could not read entry for " + entry.getName() + " in: " + inputJarPath, e);
-                            }
+                    for (ZipReader.Entry entry : jarFile.entries()) {
+                        // Entries ahead are written until the budget has room, unless the entry can never fit
+                        int cost = nestedCost(entry);
+                        int reserved = reserve(cost);
+                        while (reserved == 0 && cost > 0 && cost <= kb(nestedMemory) && !pending.isEmpty()) {
+                            if (write(jos, await(pending.remove()), verbose))
+                                modified++;
+                            reserved = reserve(cost);
                         }
-                    } catch (Exception e) {
-                        System.err.println("Failed to shade " + entry.getName() + " in " + inputJarPath);
-                        e.printStackTrace();
+                        int held = reserved;
+                        pending.add(pool.submit(() -> transform(entry, jos, shader, verbose, held)));
+                        if (pending.size() >= threads * ENTRIES_PER_THREAD &&
+                                write(jos, await(pending.remove()), verbose))
+                            modified++;
                     }
-                }
-
-                // Write the new entry, 'in' could be original or an updated version
-                try {
-                    jos.putNextEntry(new JarEntry(entry.getName()));
-                    byte[] byteBuffer = new byte[1024];
-                    int bytesRead;
-                    while ((bytesRead = in.read(byteBuffer)) != -1) {
-                        jos.write(byteBuffer, 0, bytesRead);
+                    while (!pending.isEmpty()) {
+                        if (write(jos, await(pending.remove()), verbose))
+                            modified++;
+                    }
+                } finally {
+                    if (pool != this.pool) {
+                        pool.shutdownNow();
+                    } else {
+                        // Left only if writing failed, a shared pool has other work to do
+                        for (Future<Result> result : pending) {
+                            result.cancel(true);
+                        }
                     }
-                    jos.flush();
-                    jos.closeEntry();
-                } catch (IOException e) {
-                    throw new CtxException("Could not write entry for " + entry.getName() + " in: " + jar.getAbsolutePath(), e);
                 }
             }
+
+            // All done
+            jos.close();
+            completed = true;
+        } finally {
+            if (!completed)
+                jos.abort();
+        }
+        return modified;
+    }
+
+    /**
+     * Release the input jar, the instance can not be used after this
+     */
+    public void close() {
+        jarFile.close();
+    }
+
+    /**
+     * Read an entry, update it if needed & compress new data, this may be called from any thread
+     *
+     * @param entry    the entry
+     * @param jos      the writer the entry is for
+     * @param shader   shader for classes
+     * @param verbose  If true, extra debug is printed for nested jars
+     * @param reserved KB of the nested jar budget reserved for the entry, see {@link #reserve(int)}
+     * @return the entry to write
+     * @throws CtxException if the entry can not be read
+     */
+    private Result transform(ZipReader.Entry entry, ZipWriter jos, ClassShader shader, boolean verbose,
+                             int reserved) {
+
+        // Directories & other entries are copied without being uncompressed if possible
+        ByteBuffer[] raw = jarFile.readRaw(entry);
+        if (isNestedJar(entry)) {
+            if (reserved == 0) {
+                err.println("Not shading nested jar over the memory limit: " + entryPrefix + entry.name);
+                return result(entry, jos, raw, null, null, entry.name, false, null, 0);
+            }
+            return nested(entry, jos, raw, shader, verbose, reserved);
+        }
+        if (entry.isDirectory() || !entry.name.endsWith(".class"))
+            return result(entry, jos, raw, null, null, entry.name, false, null, 0);
+
+        byte[] original = jarFile.inflate(entry, raw);
+        ClassShader.Outcome outcome = shader.shade(entry.name, original);
+        return result(entry, jos, raw, original, outcome.bytes, outcome.name, outcome.modified(), outcome.failure,
+                0);
+    }
+
+    private boolean isNestedJar(ZipReader.Entry entry) {
+        return nestedDepth > 0 && !entry.isDirectory() && entry.name.toLowerCase(Locale.ROOT).endsWith(".jar");
+    }
+
+    /**
+     * Memory needed to shade a nested jar: a copy of the jar unless it is read from the mapping of the outer jar, as
+     * stored entries up to the segment overlap are, and a buffer for its output
+     *
+     * @return the KB needed, 0 if the entry is not a nested jar to shade
+     */
+    private int nestedCost(ZipReader.Entry entry) {
+        if (!isNestedJar(entry))
+            return 0;
+        long copy = entry.method == ZipReader.STORED && entry.size <= ZipReader.SEGMENT_OVERLAP ? 0 : entry.size;
+        long bytes = copy + nestedOutputLimit(entry);
+        return kb(nestedDepth > 1 ? Math.max(bytes, nestedMemory) : bytes);
+    }
+
+    private static long nestedOutputLimit(ZipReader.Entry entry) {
+        return entry.size + (entry.size >> 3) + NESTED_SLACK;
+    }
+
+    /**
+     * Reserve what a nested jar needs from the budget, without waiting
+     *
+     * @param cost the KB needed, from {@link #nestedCost(ZipReader.Entry)}
+     * @return the KB reserved, 0 if nothing is needed or it does not fit what is left of the budget
+     */
+    private int reserve(int cost) {
+        return cost > 0 && nestedBudget.tryAcquire(cost) ? cost : 0;
+    }
+
+    private static int kb(long bytes) {
+        return (int) Math.min((bytes + 1023) >> 10, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Shade a nested jar in memory, the jar is copied as it is if nothing in it changes
+     */
+    private Result nested(ZipReader.Entry entry, ZipWriter jos, ByteBuffer[] raw, ClassShader shader,
+                          boolean verbose, int reserved) {
+
+        // A stored jar is read from the mapping of the outer jar, only one that is compressed is copied
+        byte[] original = null;
+        ByteBuffer data;
+        if (entry.method == ZipReader.STORED && raw.length == 1) {
+            data = raw[0].duplicate();
+        } else {
+            original = jarFile.inflate(entry, raw);
+            data = ByteBuffer.wrap(original);
+        }
+
+        String path = inputJarPath + "!/" + entry.name;
+        long outputLimit = nestedOutputLimit(entry);
+        NestedOutput out = new NestedOutput((int) Math.min(outputLimit, Integer.MAX_VALUE - 8));
+        int modified;
+        try {
+            JarShade nested = new JarShade(path, new ZipReader(path, data), entryPrefix + entry.name + "!/");
+            nested.setLevel(level);
+            long left = Math.max(0, ((long) reserved << 10) - (original != null ? original.length : 0) - outputLimit);
+            nested.setNested(nestedDepth - 1, left);
+            nested.nestedBudget = new Semaphore(kb(left));
+            nested.setOutput(this.out, err);
+            try {
+                modified = nested.writeTo(new ZipWriter(path, out), shader, verbose);
+            } finally {
+                nested.close();
+            }
+        } catch (NestedOutput.OverLimitException e) {
+            err.println("Not shading nested jar that grows over the memory limit: " + entryPrefix + entry.name);
+            return result(entry, jos, raw, original, null, entry.name, false, null, reserved);
+        } catch (CtxException e) {
+            return result(entry, jos, raw, original, null, entry.name, false, e, reserved);
+        }
+        if (modified == 0)
+            return result(entry, jos, raw, original, null, entry.name, false, null, reserved);
+        return new Result(entry, entry.name, raw, out.compress(jos, entry.name), true, null, reserved);
+    }
+
+    /**
+     * Buffer for a rewritten nested jar that can't grow past the memory reserved for it, the data is used without
+     * being copied
+     */
+    private static final class NestedOutput extends ByteArrayOutputStream {
+        private final int limit;
+
+        NestedOutput(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (count >= limit)
+                throw new OverLimitException();
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (len > limit - count)
+                throw new OverLimitException();
+            super.write(b, off, len);
+        }
+
+        ZipWriter.Compressed compress(ZipWriter jos, String name) {
+            return jos.compress(name, buf, count);
+        }
+
+        private static final class OverLimitException extends CtxException {
+            private static final long serialVersionUID = 1L;
+
+            OverLimitException() {
+                super("Nested jar output over the memory limit");
+            }
         }
+    }
 
-        // All done
+    /**
+     * Create the result for an entry, unchanged entries are only uncompressed when the writer can't copy them
+     */
+    private Result result(ZipReader.Entry entry, ZipWriter jos, ByteBuffer[] raw, byte[] original, byte[] bytes,
+                          String name, boolean modified, Exception failure, int reserved) {
+        if (bytes == null && !jos.canCopy(entry))
+            bytes = original != null ? original : jarFile.inflate(entry, raw);
+        return new Result(entry, name, raw, bytes != null ? jos.compress(name, bytes) : null, modified, failure,
+                reserved);
+    }
+
+    /**
+     * Wait for a transform, rethrowing its failure
+     *
+     * @param result the pending transform
+     * @return the outcome
+     * @throws CtxException if the transform failed or the thread is interrupted
+     */
+    static <T> T await(Future<T> result) {
         try {
-            jos.close();
-        } catch (IOException e) {
-            throw new CtxException("Error closing jar : " + jar.getAbsolutePath(), e);
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CtxException)
+                throw (CtxException) e.getCause();
+            throw new CtxException("Unexpected error transforming entry", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CtxException("Interrupted while transforming entries", e);
+        }
+    }
+
+    /**
+     * Write a transformed entry, the entry keeps the time of the original so output is repeatable
+     *
+     * @return true if the entry was modified
+     */
+    private boolean write(ZipWriter jos, Result result, boolean verbose) {
+        if (result.failure != null) {
+            err.println("Failed to shade " + result.entry.name + " in " + inputJarPath);
+            result.failure.printStackTrace(err);
+        } else if (result.modified && verbose) {
+            out.println("Modified:  " + entryPrefix + result.entry.name);
         }
+
+        if (result.data != null)
+            jos.write(result.entry, result.name, result.data);
+        else
+            jos.copy(result.entry, result.raw);
+        nestedBudget.release(result.reserved);
+        return result.modified;
     }
 }
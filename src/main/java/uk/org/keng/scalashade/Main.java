@@ -19,6 +19,13 @@ import org.apache.commons.cli.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Main entry, parse args and execute
@@ -29,66 +36,340 @@ public class Main {
     private final static String footer = "v0.1 https://github.com/hutkev/ScalaShade";
 
     public static void main(String[] args) throws IOException {
+        int code = run(args, null, System.out, System.err, null);
+        if (code != 0)
+            System.exit(code);
+    }
+
+    /**
+     * Run with some arguments
+     *
+     * @param args   the arguments
+     * @param dir    directory relative paths are resolved against, or null for the working directory
+     * @param stdout stream for progress messages
+     * @param stderr stream for warnings & failures
+     * @param pool   pool to transform jar entries on when running in a daemon, or null
+     * @return 0 on success, otherwise 1
+     */
+    static int run(String[] args, File dir, PrintStream stdout, PrintStream stderr, ExecutorService pool) {
+        return run(args, dir, stdout, stderr, pool, new AtomicLong());
+    }
+
+    /**
+     * Run with some arguments, counting the classes modified
+     *
+     * @param args            the arguments
+     * @param dir             directory relative paths are resolved against, or null for the working directory
+     * @param stdout          stream for progress messages
+     * @param stderr          stream for warnings & failures
+     * @param pool            pool to transform jar entries on when running in a daemon, or null
+     * @param modifiedClasses incremented by the number of classes modified
+     * @return 0 on success, otherwise 1
+     */
+    static int run(String[] args, File dir, PrintStream stdout, PrintStream stderr, ExecutorService pool,
+                   AtomicLong modifiedClasses) {
 
         // Pull args apart
         Options options = new Options();
         options.addOption("h", "help", false, "help");
         options.addOption("v", "verbose", false, "logs classes being modified");
         options.addOption("d", "debug", false, "dump entry table when handling a class");
+        options.addOption("c", "compact", false, "drop unused entries from updated signatures");
+        options.addOption("b", "bytecode", false, "also relocate class names in bytecode");
+        options.addOption(Option.builder("j").longOpt("threads").hasArg().argName("n")
+                .desc("number of threads used to process a jar, default 1").build());
+        options.addOption(Option.builder("l").longOpt("level").hasArg().argName("n")
+                .desc("compression level 1-9 for updated entries, 0 stores all entries uncompressed").build());
+        options.addOption(Option.builder().longOpt("batch").hasArg().argName("file")
+                .desc("shade each '<input jar> <output jar>' line of a file, no input/output arguments are given")
+                .build());
+        options.addOption(Option.builder().longOpt("batch-dirs")
+                .desc("input & output are directories, every jar in the input is shaded into the output").build());
+        options.addOption(Option.builder().longOpt("cache").hasArg().argName("dir")
+                .desc("cache the outcome of shading classes in a directory").build());
+        options.addOption(Option.builder().longOpt("cache-size").hasArg().argName("MB")
+                .desc("size the cache is trimmed to, default " + (ShadeCache.DEFAULT_MAX_BYTES >> 20)).build());
+        options.addOption(Option.builder().longOpt("nested").hasArg().argName("depth")
+                .desc("also shade jars nested in jars, to a depth").build());
+        options.addOption(Option.builder().longOpt("nested-memory").hasArg().argName("MB")
+                .desc("limit on the memory held for nested jars, their copies & output, across all threads " +
+                        "for each jar being shaded, default " +
+                        (JarShade.DEFAULT_NESTED_MEMORY >> 20)).build());
+        options.addOption(Option.builder().longOpt("daemon").hasArg().argName("port")
+                .desc("run as a daemon on a local port, 0 picks a free port").build());
+        options.addOption(Option.builder().longOpt("client")
+                .desc("send the other arguments to the daemon, shading here if none is running").build());
+        options.addOption(Option.builder().longOpt("stop-daemon").desc("stop the daemon").build());
+        options.addOption(Option.builder().longOpt("daemon-file").hasArg().argName("file")
+                .desc("file holding how to reach the daemon, default ~/" + Daemon.DEFAULT_FILE).build());
+        options.addOption(Option.builder("r").longOpt("relocate").hasArg().argName("from=to")
+                .desc("relocate a namespace, may be repeated").build());
+        options.addOption(Option.builder("x").longOpt("exclude").hasArg().argName("namespace")
+                .desc("exclude a namespace from relocation, may be repeated").build());
+        options.addOption(Option.builder("f").longOpt("rules").hasArg().argName("file")
+                .desc("read relocate/exclude rules from a file").build());
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd;
         try {
             cmd = parser.parse(options, args);
         } catch (ParseException e) {
-            System.err.println("Argument Parsing failed.  Reason: " + e.getMessage());
-            return;
+            stderr.println("Argument Parsing failed.  Reason: " + e.getMessage());
+            return 1;
+        }
+
+        // Hand over to or become a daemon
+        boolean daemonOption = cmd.hasOption("daemon") || cmd.hasOption("client") || cmd.hasOption("stop-daemon");
+        if (daemonOption && pool != null) {
+            stderr.println("Daemon options can not be sent to a daemon");
+            return 1;
+        }
+        File daemonFile = cmd.hasOption("daemon-file") ? FileUtil.resolve(dir, cmd.getOptionValue("daemon-file")) :
+                new File(System.getProperty("user.home"), Daemon.DEFAULT_FILE);
+        if (cmd.hasOption("stop-daemon"))
+            return Daemon.stop(daemonFile, stdout, stderr);
+        if (cmd.hasOption("client")) {
+            List<String> forwarded = new ArrayList<>(Arrays.asList(args));
+            forwarded.remove("--client");
+            return Daemon.forward(daemonFile, forwarded.toArray(new String[0]), stdout, stderr);
         }
 
-        if (cmd.getArgList().size() != 4 || cmd.hasOption("h")) {
+        int argCount = cmd.getArgList().size();
+        boolean batch = cmd.hasOption("batch");
+        int fileArgs = batch ? 0 : 2;
+        if (cmd.hasOption("daemon"))
+            fileArgs = 0;
+        if ((argCount != fileArgs && argCount != fileArgs + 2) || cmd.hasOption("h")) {
             HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp("scala-shade [opts] <input jar/class> <output jar/class> <from-namespace> <to-namespace>", header, options, footer);
-            return;
+            PrintWriter writer = new PrintWriter(stdout);
+            formatter.printHelp(writer, formatter.getWidth(),
+                    "scala-shade [opts] <input jar/class/dir> <output jar/class/dir> [<from-namespace> <to-namespace>]\n" +
+                    "       scala-shade [opts] --batch <file> [<from-namespace> <to-namespace>]\n" +
+                    "       scala-shade [opts] --daemon <port>",
+                    header, options, formatter.getLeftPadding(), formatter.getDescPadding(), footer);
+            writer.flush();
+            return cmd.hasOption("h") ? 0 : 1;
         }
 
         // Set parameters/flags
         boolean verbose = cmd.hasOption("v");
         boolean debug = cmd.hasOption("d");
-        String in = cmd.getArgList().get(0);
-        String out = cmd.getArgList().get(1);
-        String from = cmd.getArgList().get(2);
-        String to = cmd.getArgList().get(3);
+        boolean compact = cmd.hasOption("c");
+        boolean bytecode = cmd.hasOption("b");
+        int threads = 1;
+        if (cmd.hasOption("j")) {
+            try {
+                threads = Integer.parseInt(cmd.getOptionValue("j"));
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                stderr.println("Number of threads should be a positive number: " + cmd.getOptionValue("j"));
+                return 1;
+            }
+        }
+        int level = -1;
+        if (cmd.hasOption("l")) {
+            try {
+                level = Integer.parseInt(cmd.getOptionValue("l"));
+            } catch (NumberFormatException e) {
+                level = -2;
+            }
+            if (level < 0 || level > 9) {
+                stderr.println("Compression level should be between 0 and 9: " + cmd.getOptionValue("l"));
+                return 1;
+            }
+        }
+        long cacheSize = ShadeCache.DEFAULT_MAX_BYTES;
+        if (cmd.hasOption("cache-size")) {
+            try {
+                cacheSize = Long.parseLong(cmd.getOptionValue("cache-size")) << 20;
+            } catch (NumberFormatException e) {
+                cacheSize = -1;
+            }
+            if (cacheSize < 0) {
+                stderr.println("Cache size should be a number of MB: " + cmd.getOptionValue("cache-size"));
+                return 1;
+            }
+        }
+        int nestedDepth = 0;
+        if (cmd.hasOption("nested")) {
+            try {
+                nestedDepth = Integer.parseInt(cmd.getOptionValue("nested"));
+            } catch (NumberFormatException e) {
+                nestedDepth = -1;
+            }
+            if (nestedDepth < 0) {
+                stderr.println("Nested jar depth should be a number: " + cmd.getOptionValue("nested"));
+                return 1;
+            }
+        }
+        long nestedMemory = JarShade.DEFAULT_NESTED_MEMORY;
+        if (cmd.hasOption("nested-memory")) {
+            try {
+                nestedMemory = Long.parseLong(cmd.getOptionValue("nested-memory")) << 20;
+            } catch (NumberFormatException e) {
+                nestedMemory = -1;
+            }
+            if (nestedMemory < 0) {
+                stderr.println("Nested jar memory limit should be a number of MB: " +
+                        cmd.getOptionValue("nested-memory"));
+                return 1;
+            }
+        }
+        if (cmd.hasOption("daemon")) {
+            int port;
+            try {
+                port = Integer.parseInt(cmd.getOptionValue("daemon"));
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 0xffff) {
+                stderr.println("Daemon port should be a number between 0 and 65535: " + cmd.getOptionValue("daemon"));
+                return 1;
+            }
+            try {
+                new Daemon(daemonFile, threads).serve(port, stdout);
+            } catch (CtxException e) {
+                stderr.println(e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+        String in = batch ? null : FileUtil.resolve(dir, cmd.getArgList().get(0)).getPath();
+        String out = batch ? null : FileUtil.resolve(dir, cmd.getArgList().get(1)).getPath();
+
+        // Collect all the rules together
+        NamespaceTrie relocations = new NamespaceTrie();
+        ShadeCache cache = null;
+        try {
+            if (argCount == fileArgs + 2)
+                relocations.add(cmd.getArgList().get(fileArgs), cmd.getArgList().get(fileArgs + 1));
+            if (cmd.hasOption("f"))
+                RulesFile.read(FileUtil.resolve(dir, cmd.getOptionValue("f")), relocations);
+            if (cmd.hasOption("r")) {
+                for (String relocation : cmd.getOptionValues("r")) {
+                    int equals = relocation.indexOf('=');
+                    if (equals == -1)
+                        throw new CtxException("Relocation should be <from>=<to>: " + relocation);
+                    relocations.add(relocation.substring(0, equals), relocation.substring(equals + 1));
+                }
+            }
+            if (cmd.hasOption("x")) {
+                for (String namespace : cmd.getOptionValues("x")) {
+                    relocations.exclude(namespace);
+                }
+            }
+            if (cmd.hasOption("cache"))
+                cache = new ShadeCache(FileUtil.resolve(dir, cmd.getOptionValue("cache")), cacheSize);
+        } catch (CtxException e) {
+            stderr.println(e.getMessage());
+            return 1;
+        }
+        if (relocations.isEmpty()) {
+            stderr.println("No relocations given, use <from-namespace> <to-namespace>, -r or -f");
+            return 1;
+        }
+
+        if (batch || cmd.hasOption("batch-dirs")) {
+            // Many jars in one run
+            try {
+                BatchShade batchShade = new BatchShade();
+                if (batch)
+                    batchShade.readManifest(FileUtil.resolve(dir, cmd.getOptionValue("batch")), dir);
+                else
+                    batchShade.addDirectory(new File(in), new File(out));
+                batchShade.setCompact(compact);
+                batchShade.setRelocateBytecode(bytecode);
+                batchShade.setThreads(threads);
+                batchShade.setLevel(level);
+                batchShade.setNested(nestedDepth, nestedMemory);
+                batchShade.setCache(cache);
+                batchShade.setPool(pool);
+                batchShade.setOutput(stdout, stderr);
+                int failed = batchShade.run(relocations, verbose);
+                modifiedClasses.addAndGet(batchShade.modified());
+                if (failed > 0) {
+                    stderr.println("Failed to shade " + failed + " of " + batchShade.jobs().size() + " jars");
+                    return 1;
+                }
+            } catch (CtxException ex) {
+                ex.printStackTrace(stderr);
+                return 1;
+            }
+            return 0;
+        }
 
         File inFile = new File(in);
         if (FileUtil.isClass(inFile)) {
             // Looks like we got a class file, so deal with it directly
             try {
                 ScalaSigClass sigClass = new ScalaSigClass(in);
-                ScalaSig sig = sigClass.getSig();
+                ScalaSig sig = debug || sigClass.mayReference(relocations) ? sigClass.getSig() : null;
                 if (sig!=null && debug) {
-                    System.err.println(sig);
+                    stderr.println(sig);
                 }
-                if (sig != null && sig.replace(from, to) > 0) {
-                    sigClass.writeTo(out);
+                boolean modified = sig != null && sig.replace(relocations) > 0;
+                if (modified && compact)
+                    sig.compact();
+                byte[] relocated = null;
+                if (bytecode && sigClass.mayReferenceInBytecode(relocations))
+                    relocated = sigClass.getBytes(new RulesRemapper(relocations));
+                if (modified || relocated != null) {
+                    sigClass.writeTo(out, relocated);
+                    modifiedClasses.incrementAndGet();
                     if (verbose)
-                        System.out.println("Modified:  " + in);
+                        stdout.println("Modified:  " + in);
                     if (debug)
-                        System.err.println(sig);
+                        stderr.println(sig);
                 } else {
                     FileUtil.copyFile(inFile, new File(out));
                 }
             } catch (CtxException e) {
-                e.printStackTrace();
+                e.printStackTrace(stderr);
+                return 1;
+            }
+        } else if (inFile.isDirectory()) {
+            // A tree of classes, written to a directory or a jar
+            try {
+                DirShade dirShade = new DirShade(inFile);
+                dirShade.setCompact(compact);
+                dirShade.setRelocateBytecode(bytecode);
+                dirShade.setThreads(threads);
+                dirShade.setLevel(level);
+                dirShade.setCache(cache);
+                dirShade.setOutput(stdout, stderr);
+                dirShade.writeTo(new File(out), relocations, verbose);
+                modifiedClasses.addAndGet(dirShade.modified());
+            } catch (CtxException ex) {
+                ex.printStackTrace(stderr);
+                return 1;
             }
         } else if (FileUtil.isJar(inFile)) {
             // Looks like we got a jar, use helper to handle
             try {
                 JarShade jarShade = new JarShade(new File(in));
-                jarShade.writeTo(new File(out), from, to, verbose);
+                jarShade.setCompact(compact);
+                jarShade.setRelocateBytecode(bytecode);
+                jarShade.setThreads(threads);
+                jarShade.setLevel(level);
+                jarShade.setNested(nestedDepth, nestedMemory);
+                jarShade.setCache(cache);
+                jarShade.setPool(pool);
+                jarShade.setOutput(stdout, stderr);
+                try {
+                    jarShade.writeTo(new File(out), relocations, verbose);
+                    modifiedClasses.addAndGet(jarShade.modified());
+                } finally {
+                    jarShade.close();
+                }
             } catch (CtxException ex) {
-                ex.printStackTrace();
+                ex.printStackTrace(stderr);
+                return 1;
             }
         } else {
-            System.err.println("Input file " + in + " does not appear to be either a class file or jar.");
+            stderr.println("Input file " + in + " does not appear to be a class file, jar or directory.");
+            return 1;
         }
+        return 0;
     }
 }
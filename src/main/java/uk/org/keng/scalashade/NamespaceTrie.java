@@ -0,0 +1,516 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trie of namespace components for matching relocations. Each node is one component of a namespace reached from its
+ * parent, the nodes where a relocation's namespace ends carry the namespace to use instead. A table resolves its
+ * class refs by stepping through the trie one component at a time, so refs are never joined into strings and any
+ * ref that leaves the trie can be dismissed along with all of its children.
+ * <p/>
+ * Every component name in the trie is given an id that is found from its UTF-8 encoding, so TermName entries are
+ * matched by their bytes in place and are never decoded.
+ * <p/>
+ * Excluded namespaces are also nodes of the trie. Nothing at or below an excluded node is relocated, even if a
+ * relocation is for a namespace below it.
+ * <p/>
+ * The namespaces relocated to are compiled into {@link Target}s as relocations are added, so a trie built once can
+ * be applied to any number of tables without further string handling.
+ */
+class NamespaceTrie {
+
+    /**
+     * A namespace that is relocated to. Targets form a tree like the namespaces they encode, each has the UTF-8
+     * encoded name of its last component and ids that tables use to record the entries they have for it.
+     */
+    static final class Target {
+        private final Target _parent;
+        private final byte[] _name;
+        private final int _nameId;
+        private final int _id;
+        private final String _namespace;
+        private final byte[] _namespaceBytes;
+
+        private Target(Target parent, byte[] name, int nameId, int id, String namespace, byte[] namespaceBytes) {
+            _parent = parent;
+            _name = name;
+            _nameId = nameId;
+            _id = id;
+            _namespace = namespace;
+            _namespaceBytes = namespaceBytes;
+        }
+
+        /**
+         * @return the target for the namespace without the last component, or null if there is one component
+         */
+        Target parent() {
+            return _parent;
+        }
+
+        /**
+         * @return the UTF-8 encoded last component, to be used as a TermName payload
+         */
+        byte[] name() {
+            return _name;
+        }
+
+        /**
+         * @return id of the last component name, see {@link NamespaceTrie#nameId(byte[], int, int)}
+         */
+        int nameId() {
+            return _nameId;
+        }
+
+        /**
+         * @return id of the target, between 0 and {@link #targetCount()}
+         */
+        int id() {
+            return _id;
+        }
+
+        @Override
+        public String toString() {
+            return _namespace;
+        }
+    }
+
+    /**
+     * A node of the trie, the root node is the empty namespace
+     */
+    static final class Node {
+        private final Map<String, Node> _children = new HashMap<>();
+        private final int _nameId;
+        private Target _replacement = null;
+        private boolean _excluded = false;
+
+        // Derived from the above for this node and its parents by update()
+        private int[] _childIds = {};
+        private Node[] _childNodes = {};
+        private Target _with = null;
+        private boolean _exclusion = false;
+        private boolean _inExclusion = false;
+        private boolean _relocatedAbove = false;
+
+        Node(int nameId) {
+            _nameId = nameId;
+        }
+
+        /**
+         * Step to a child node
+         *
+         * @param component the next namespace component
+         * @return the child node, or null if no relocation or exclusion passes through it
+         */
+        Node child(String component) {
+            return _children.get(component);
+        }
+
+        /**
+         * Step to a child node
+         *
+         * @param nameId id of the next namespace component, see {@link NamespaceTrie#nameId(byte[], int, int)}
+         * @return the child node, or null if no relocation or exclusion passes through it
+         */
+        Node child(int nameId) {
+            int at = Arrays.binarySearch(_childIds, nameId);
+            return at >= 0 ? _childNodes[at] : null;
+        }
+
+        /**
+         * Get the replacement if a relocation ends at this node and it is not excluded
+         *
+         * @return the namespace to use instead, or null
+         */
+        Target with() {
+            return _with;
+        }
+
+        /**
+         * Test if this is the top of an excluded namespace that is inside a relocated namespace. Entries for such a
+         * node must keep their original parents when the parents are relocated.
+         *
+         * @return true if the node needs its original parents preserved
+         */
+        boolean preserveParents() {
+            return _exclusion && _relocatedAbove;
+        }
+
+        /**
+         * Test if a namespace above this node is relocated
+         *
+         * @return true if a parent node has a relocation
+         */
+        boolean relocatedAbove() {
+            return _relocatedAbove;
+        }
+    }
+
+    // Compiled namespaces relocated to, and the distinct component names used by all namespaces
+    private final Map<String, Target> _targets = new HashMap<>();
+    private final List<byte[]> _names = new ArrayList<>();
+    private int[] _nameSlots = {-1, -1};
+
+    private final Node _root = new Node(-1);
+    private List<byte[]> _firstNames = new ArrayList<>();
+    private List<byte[]> _internalNames = new ArrayList<>();
+
+    /**
+     * Create an empty trie, add relocations with {@link #add(String, String)}
+     */
+    NamespaceTrie() {
+    }
+
+    /**
+     * Create with a single relocation
+     *
+     * @param replace the namespace to replace, use '.' separators as usual
+     * @param with    the namespace to use instead, use '.' separators as usual
+     */
+    NamespaceTrie(String replace, String with) {
+        add(replace, with);
+    }
+
+    /**
+     * Add a relocation
+     *
+     * @param replace the namespace to replace, use '.' separators as usual
+     * @param with    the namespace to use instead, use '.' separators as usual
+     * @throws CtxException if the namespace already has a different relocation
+     */
+    void add(String replace, String with) {
+        Node node = insert(replace);
+        Target replacement = target(with);
+        if (node._replacement != null && node._replacement != replacement)
+            throw new CtxException("Conflicting relocations for namespace: " + replace);
+        node._replacement = replacement;
+        update();
+    }
+
+    /**
+     * Exclude a namespace, and everything within it, from relocation
+     *
+     * @param namespace the namespace to exclude, use '.' separators as usual
+     */
+    void exclude(String namespace) {
+        insert(namespace)._excluded = true;
+        update();
+    }
+
+    /**
+     * Test if there are any relocations
+     *
+     * @return true if there are none
+     */
+    boolean isEmpty() {
+        return _root._children.isEmpty();
+    }
+
+    Node root() {
+        return _root;
+    }
+
+    /**
+     * Describe the relocations & exclusions as rules file lines, sorted so equal tries give equal lists however
+     * they were built
+     *
+     * @return the rules
+     */
+    List<String> rules() {
+        List<String> rules = new ArrayList<>();
+        rules(_root, "", rules);
+        Collections.sort(rules);
+        return rules;
+    }
+
+    private static void rules(Node node, String namespace, List<String> rules) {
+        if (node._replacement != null)
+            rules.add("relocate " + namespace + " " + node._replacement);
+        if (node._excluded)
+            rules.add("exclude " + namespace);
+        for (Map.Entry<String, Node> child : node._children.entrySet()) {
+            rules(child.getValue(), namespace.isEmpty() ? child.getKey() : namespace + "." + child.getKey(), rules);
+        }
+    }
+
+    /**
+     * UTF-8 encoded first components of all namespaces in the trie, any reference to a namespace in the trie must
+     * include one
+     *
+     * @return the components
+     */
+    List<byte[]> firstNames() {
+        return _firstNames;
+    }
+
+    /**
+     * UTF-8 encoded namespaces that are relocated, with '/' separators as in the internal names of classes. Any
+     * class name in bytecode that is relocated starts with one of these.
+     *
+     * @return the namespaces
+     */
+    List<byte[]> internalNames() {
+        return _internalNames;
+    }
+
+    /**
+     * Number of targets, the namespaces relocated to and their parents
+     *
+     * @return the count
+     */
+    int targetCount() {
+        return _targets.size();
+    }
+
+    /**
+     * Number of distinct component names used by namespaces in the trie and targets, name ids are less than this
+     *
+     * @return the count
+     */
+    int nameCount() {
+        return _names.size();
+    }
+
+    /**
+     * Find the id of a component name from its UTF-8 encoding
+     *
+     * @param data   buffer holding the encoded name
+     * @param offset offset of the name in the buffer
+     * @param length length of the name
+     * @return the name id, or -1 if no namespace uses the name
+     */
+    int nameId(byte[] data, int offset, int length) {
+        int mask = _nameSlots.length - 1;
+        for (int slot = hash(data, offset, length) & mask; ; slot = (slot + 1) & mask) {
+            int id = _nameSlots[slot];
+            if (id == -1)
+                return -1;
+            byte[] name = _names.get(id);
+            if (name.length == length && regionMatches(data, offset, name))
+                return id;
+        }
+    }
+
+    /**
+     * Get the target for a namespace, compiling it and its parents if needed
+     */
+    private Target target(String namespace) {
+        Target target = _targets.get(namespace);
+        if (target == null) {
+            int last = namespace.lastIndexOf('.');
+            Target parent = last == -1 ? null : target(namespace.substring(0, last));
+            String component = namespace.substring(last + 1);
+            if (component.isEmpty())
+                throw new CtxException("Invalid namespace: '" + namespace + "'");
+            byte[] name = component.getBytes(StandardCharsets.UTF_8);
+            target = new Target(parent, name, nameId(name), _targets.size(), namespace,
+                    namespace.getBytes(StandardCharsets.UTF_8));
+            _targets.put(namespace, target);
+        }
+        return target;
+    }
+
+    /**
+     * Get the id of a component name, adding it if new
+     */
+    private int nameId(byte[] name) {
+        int id = nameId(name, 0, name.length);
+        if (id == -1) {
+            id = _names.size();
+            _names.add(name);
+
+            // Keep the slots no more than half full
+            int[] slots = new int[Integer.highestOneBit(_names.size() * 2) * 2];
+            Arrays.fill(slots, -1);
+            int mask = slots.length - 1;
+            for (int i = 0; i < _names.size(); i++) {
+                byte[] n = _names.get(i);
+                int slot = hash(n, 0, n.length) & mask;
+                while (slots[slot] != -1)
+                    slot = (slot + 1) & mask;
+                slots[slot] = i;
+            }
+            _nameSlots = slots;
+        }
+        return id;
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + data[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (data[offset + i] != name[i])
+                return false;
+        }
+        return true;
+    }
+
+    private Node insert(String namespace) {
+        Node node = _root;
+        for (String component : split(namespace)) {
+            Node child = node._children.get(component);
+            if (child == null) {
+                child = new Node(nameId(component.getBytes(StandardCharsets.UTF_8)));
+                node._children.put(component, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static String[] split(String namespace) {
+        String[] components = namespace.split("\\.", -1);
+        for (String component : components) {
+            if (component.isEmpty())
+                throw new CtxException("Invalid namespace: '" + namespace + "'");
+        }
+        return components;
+    }
+
+    /**
+     * Recalculate the derived state of the trie after a change
+     */
+    private void update() {
+        update(_root, false, false);
+        List<byte[]> firstNames = new ArrayList<>();
+        for (Node child : _root._childNodes) {
+            firstNames.add(_names.get(child._nameId));
+        }
+        _firstNames = firstNames;
+        List<byte[]> internalNames = new ArrayList<>();
+        internalNames(_root, "", internalNames);
+        _internalNames = internalNames;
+    }
+
+    private static void internalNames(Node node, String namespace, List<byte[]> names) {
+        if (node._with != null)
+            names.add(namespace.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, Node> child : node._children.entrySet()) {
+            internalNames(child.getValue(), namespace.isEmpty() ? child.getKey() : namespace + "/" + child.getKey(),
+                    names);
+        }
+    }
+
+    /**
+     * Recalculate the derived state of a node and its children from the relocations & exclusions
+     */
+    private static void update(Node node, boolean inExclusion, boolean relocatedAbove) {
+        node._exclusion = node._excluded && !inExclusion;
+        node._inExclusion = node._excluded || inExclusion;
+        node._relocatedAbove = relocatedAbove;
+        node._with = node._inExclusion ? null : node._replacement;
+
+        // Children are held by name id in order for searching
+        Node[] children = node._children.values().toArray(new Node[0]);
+        Arrays.sort(children, (a, b) -> Integer.compare(a._nameId, b._nameId));
+        node._childIds = new int[children.length];
+        for (int i = 0; i < children.length; i++) {
+            node._childIds[i] = children[i]._nameId;
+        }
+        node._childNodes = children;
+
+        for (Node child : children) {
+            update(child, node._inExclusion, relocatedAbove || node._with != null);
+        }
+    }
+
+    /**
+     * Find the longest relocation that is a prefix of a dotted name, such as a class name in a string literal. A
+     * relocation must match whole components, so "org.apache" is a prefix of "org.apache.Foo" but not "org.apachex".
+     *
+     * @param name the name to match
+     * @return the name after relocation, or null if no relocation matches or the name is excluded
+     */
+    String relocate(String name) {
+        return relocate(name, '.');
+    }
+
+    /**
+     * Find the longest relocation that is a prefix of a name with components split by a separator, such as the
+     * internal name of a class using '/', see {@link #relocate(String)}
+     *
+     * @param name      the name to match
+     * @param separator the component separator, an ASCII character
+     * @return the name after relocation using the same separator, or null if no relocation matches or the name is
+     * excluded
+     */
+    String relocate(String name, char separator) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] relocated = relocate(bytes, 0, bytes.length, (byte) separator);
+        return relocated != null ? new String(relocated, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Find the longest relocation that is a prefix of a UTF-8 encoded dotted name, see {@link #relocate(String)}.
+     * The name is matched in place, a new encoding is only created if it is relocated.
+     *
+     * @param data   buffer holding the encoded name
+     * @param offset offset of the name in the buffer
+     * @param length length of the name
+     * @return the encoded name after relocation, or null if no relocation matches or the name is excluded
+     */
+    byte[] relocate(byte[] data, int offset, int length) {
+        return relocate(data, offset, length, (byte) '.');
+    }
+
+    private byte[] relocate(byte[] data, int offset, int length, byte separator) {
+        int limit = offset + length;
+        Node node = _root;
+        Node matched = null;
+        int matchedEnd = 0;
+        int start = offset;
+        while (node != null && start <= limit) {
+            // ASCII can not be part of a multi-byte UTF-8 sequence so components can be split on the byte
+            int end = start;
+            while (end < limit && data[end] != separator)
+                end++;
+            int nameId = nameId(data, start, end - start);
+            node = nameId != -1 ? node.child(nameId) : null;
+            if (node != null && node._inExclusion)
+                return null;
+            if (node != null && node._with != null) {
+                matched = node;
+                matchedEnd = end;
+            }
+            start = end + 1;
+        }
+        if (matched == null)
+            return null;
+        byte[] with = matched._with._namespaceBytes;
+        byte[] relocated = Arrays.copyOf(with, with.length + limit - matchedEnd);
+        System.arraycopy(data, matchedEnd, relocated, with.length, limit - matchedEnd);
+        if (separator != '.') {
+            for (int i = 0; i < with.length; i++) {
+                if (relocated[i] == '.')
+                    relocated[i] = separator;
+            }
+        }
+        return relocated;
+    }
+}
@@ -1,44 +1,214 @@
 package uk.org.keng.scalashade;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Utility functions for reading/writing NAT encoded values.
  * This is a 8-to-7-bit encoding with the high bit used as a continuation marker on all but the final byte.
+ * <p/>
+ * Nats hold unsigned values, scalac writes an Int as the LongNat of its unsigned 32-bit value. Reading is done
+ * through a {@link Reader} cursor over a byte array, or from a ByteBuffer using its position as the cursor.
  */
 public class Nat {
+
+    /**
+     * Longest encoding of a 64-bit value
+     */
+    private static final int MAX_LONG_NAT_SIZE = 10;
+
     public static int size(int value) {
+        return size(value & 0xffffffffL);
+    }
+
+    public static int size(long value) {
         int count = 0;
         do {
-            value = value >>7;
+            value = value >>> 7;
             count++;
         } while (value != 0);
         return count;
     }
 
-    public static int read(ByteArrayInputStream in) {
-        return read(in, 0);
+    public static void write(int nat, OutputStream out) throws IOException {
+        writeLong(nat & 0xffffffffL, out);
     }
 
-    private static int read(ByteArrayInputStream in, int carry) {
-        int b = in.read();
-        if (b == -1)
+    public static void writeLong(long nat, OutputStream out) throws IOException {
+        for (int shift = (size(nat) - 1) * 7; shift > 0; shift -= 7) {
+            out.write((int) ((nat >>> shift) & 0x7f) | 0x80);
+        }
+        out.write((int) (nat & 0x7f));
+    }
+
+    /**
+     * Read a Nat from a buffer, advancing its position
+     *
+     * @param buffer the buffer to read from
+     * @return the value
+     * @throws CtxException if the buffer ends early or the value does not fit in an int
+     */
+    public static int read(ByteBuffer buffer) {
+        return checkInt(readLong(buffer));
+    }
+
+    /**
+     * Read a LongNat from a buffer, advancing its position
+     *
+     * @param buffer the buffer to read from
+     * @return the value
+     * @throws CtxException if the buffer ends early, the encoding is too long or the value does not fit in a long
+     */
+    public static long readLong(ByteBuffer buffer) {
+        try {
+            long acc = 0;
+            for (int count = 1; ; count++) {
+                int b = buffer.get();
+                if ((acc >>> 57) != 0)
+                    throw new CtxException("LongNat value out of range in signature data");
+                acc = (acc << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0)
+                    return acc;
+                if (count == MAX_LONG_NAT_SIZE)
+                    throw new CtxException("Nat encoding too long in signature data");
+            }
+        } catch (BufferUnderflowException e) {
             throw new CtxException("Unexpected EOF in signature data");
-        int acc = (carry << 7) + (b & 0x7f);
-        if ((b & 0x80) == 0)
-            return acc;
-        return read(in, acc);
+        }
     }
 
-    public static void write(int nat, ByteArrayOutputStream out) {
-        write(nat, out, 0);
+    private static int checkInt(long value) {
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new CtxException("Nat value out of range in signature data: " + value);
+        return (int) value;
     }
 
-    private static void write(int nat, ByteArrayOutputStream out, int flag) {
-        int b = nat & 0x7f;
-        int h = nat >> 7;
-        if (h != 0) write(h, out, 0x80);
-        out.write(b | flag);
+    /**
+     * Cursor over a range of a byte array for reading signature data. Every read is checked against the end of the
+     * range so corrupt data results in a CtxException rather than reading past the data.
+     */
+    public static final class Reader {
+        private final byte[] _buffer;
+        private final int _limit;
+        private int _position;
+
+        /**
+         * Create over a whole array
+         *
+         * @param buffer the bytes to read
+         */
+        public Reader(byte[] buffer) {
+            this(buffer, 0, buffer.length);
+        }
+
+        /**
+         * Create over part of an array
+         *
+         * @param buffer the bytes to read
+         * @param offset index of the first byte to read
+         * @param length number of bytes that may be read
+         */
+        public Reader(byte[] buffer, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > buffer.length)
+                throw new CtxException("Signature data range out of bounds");
+            _buffer = buffer;
+            _position = offset;
+            _limit = offset + length;
+        }
+
+        public int position() {
+            return _position;
+        }
+
+        public int remaining() {
+            return _limit - _position;
+        }
+
+        public boolean hasRemaining() {
+            return _position < _limit;
+        }
+
+        /**
+         * Read a single unsigned byte
+         *
+         * @return the byte value, 0 to 255
+         * @throws CtxException if at end of range
+         */
+        public int readByte() {
+            if (_position >= _limit)
+                throw new CtxException("Unexpected EOF in signature data");
+            return _buffer[_position++] & 0xff;
+        }
+
+        /**
+         * Read a Nat
+         *
+         * @return the value
+         * @throws CtxException if the range ends early or the value does not fit in an int
+         */
+        public int readNat() {
+            return checkInt(readLongNat());
+        }
+
+        /**
+         * Read a LongNat
+         *
+         * @return the value
+         * @throws CtxException if the range ends early, the encoding is too long or the value does not fit in a long
+         */
+        public long readLongNat() {
+            long acc = 0;
+            int position = _position;
+            int end = Math.min(_limit, position + MAX_LONG_NAT_SIZE);
+            while (position < end) {
+                int b = _buffer[position++];
+                if ((acc >>> 57) != 0)
+                    throw new CtxException("LongNat value out of range in signature data");
+                acc = (acc << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    _position = position;
+                    return acc;
+                }
+            }
+            if (end == _limit)
+                throw new CtxException("Unexpected EOF in signature data");
+            throw new CtxException("Nat encoding too long in signature data");
+        }
+
+        /**
+         * Read a big-endian signed value of the given number of bytes, as used by the LITERAL entries
+         *
+         * @param length number of bytes, 0 to 8
+         * @return the sign extended value
+         * @throws CtxException if the range ends early or the length is invalid
+         */
+        public long readLong(int length) {
+            if (length < 0 || length > 8)
+                throw new CtxException("Invalid literal length in signature data: " + length);
+            if (length > remaining())
+                throw new CtxException("Unexpected EOF in signature data");
+            if (length == 0)
+                return 0;
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (_buffer[_position++] & 0xff);
+            }
+            int leading = 64 - (length << 3);
+            return (value << leading) >> leading;
+        }
+
+        /**
+         * Move past bytes without reading them
+         *
+         * @param count number of bytes to skip
+         * @throws CtxException if that would move past the end of the range
+         */
+        public void skip(int count) {
+            if (count < 0 || count > remaining())
+                throw new CtxException("Unexpected EOF in signature data");
+            _position += count;
+        }
     }
 }
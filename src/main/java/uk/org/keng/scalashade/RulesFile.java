@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Reader for a file of relocation rules. Each line is one of:
+ * <pre>
+ * relocate &lt;from-namespace&gt; &lt;to-namespace&gt;
+ * exclude &lt;namespace&gt;
+ * </pre>
+ * Blank lines and lines starting with '#' are ignored. An exclude applies to every relocation, so the namespace and
+ * everything within it keeps its name.
+ */
+class RulesFile {
+
+    /**
+     * Read rules from a file into a trie
+     *
+     * @param file        the rules file
+     * @param relocations where to add the rules
+     * @throws CtxException if the file can not be read or contains an invalid line
+     */
+    static void read(File file, NamespaceTrie relocations) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new CtxException("Could not read rules file: " + file, e);
+        }
+
+        int lineNumber = 0;
+        for (String line : lines) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] words = line.split("\\s+");
+            try {
+                if (words[0].equals("relocate") && words.length == 3) {
+                    relocations.add(words[1], words[2]);
+                } else if (words[0].equals("exclude") && words.length == 2) {
+                    relocations.exclude(words[1]);
+                } else {
+                    throw new CtxException("Expected 'relocate <from> <to>' or 'exclude <namespace>'");
+                }
+            } catch (CtxException e) {
+                throw new CtxException("Invalid rule at " + file + ":" + lineNumber + ": " + e.getMessage());
+            }
+        }
+    }
+}
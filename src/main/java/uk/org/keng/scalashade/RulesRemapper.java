@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import org.objectweb.asm.commons.Remapper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ASM remapper that relocates class names in bytecode with the same rules used for signatures. Used with a
+ * ClassRemapper this covers the class names in the constant pool, descriptors and generic signatures of a class.
+ * Results are cached as the same names are used by many classes.
+ */
+class RulesRemapper extends Remapper {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final NamespaceTrie _relocations;
+    private final Map<String, String> _mapped = new ConcurrentHashMap<>();
+
+    /**
+     * Create for a set of relocations
+     *
+     * @param relocations the namespaces to replace and what to replace them with
+     */
+    RulesRemapper(NamespaceTrie relocations) {
+        _relocations = relocations;
+    }
+
+    /**
+     * Relocate an internal class name
+     *
+     * @param internalName the name, using '/' separators
+     * @return the relocated name, or the name if no relocation applies
+     */
+    @Override
+    public String map(String internalName) {
+        String mapped = _mapped.get(internalName);
+        if (mapped == null) {
+            mapped = _relocations.relocate(internalName, '/');
+            if (mapped == null)
+                mapped = internalName;
+            _mapped.put(internalName, mapped);
+        }
+        return mapped;
+    }
+
+    /**
+     * Relocate the path of a class file in a jar, other paths are not changed
+     *
+     * @param path the path of a jar entry
+     * @return the path the entry should be written to
+     */
+    String mapEntryName(String path) {
+        if (!path.endsWith(CLASS_SUFFIX))
+            return path;
+        String internalName = path.substring(0, path.length() - CLASS_SUFFIX.length());
+        return map(internalName) + CLASS_SUFFIX;
+    }
+
+    /**
+     * Create a remapper for a single class that records whether any name in it is relocated
+     *
+     * @return the remapper
+     */
+    Tracker track() {
+        return new Tracker();
+    }
+
+    /**
+     * Remapper for a single class, relocating as the remapper it was created from does
+     */
+    final class Tracker extends Remapper {
+        private boolean _relocated = false;
+
+        @Override
+        public String map(String internalName) {
+            String mapped = RulesRemapper.this.map(internalName);
+            if (!mapped.equals(internalName))
+                _relocated = true;
+            return mapped;
+        }
+
+        /**
+         * @return true if any name passed to the remapper has been relocated
+         */
+        boolean relocated() {
+            return _relocated;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Java agent that updates @ScalaSignature as classes are loaded, so jars can be used without being rewritten. Only
+ * classes that are loaded are looked at, and those whose constant pool shows they can't have a signature that refers
+ * to a relocated namespace are passed over without being parsed. Class names in bytecode are not relocated, a class
+ * can't change its name as it is loaded.
+ * <p/>
+ * The agent is given a list of options separated by ',', each one of:
+ * <pre>
+ * &lt;from-namespace&gt;=&lt;to-namespace&gt;   a relocation
+ * !&lt;namespace&gt;                        an exclusion
+ * verbose                             print the counters when the JVM exits
+ * &lt;file&gt;                              a rules file, see {@link RulesFile}
+ * </pre>
+ * for example -javaagent:scalashade.jar=shade.rules or -javaagent:scalashade.jar=org.apache=shaded.org.apache.
+ * Counters are published over JMX.
+ */
+public class ScalaShadeAgent implements ClassFileTransformer, ScalaShadeAgentMBean {
+
+    /**
+     * Name the counters are published under
+     */
+    public static final String OBJECT_NAME = "uk.org.keng.scalashade:type=Agent";
+
+    private final ScalaShadeTransformer transformer;
+    private final boolean verbose;
+    private final AtomicLong inspected = new AtomicLong();
+    private final AtomicLong rewritten = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * Set while a thread is transforming, classes the agent itself loads are passed over
+     */
+    private final ThreadLocal<Boolean> transforming = new ThreadLocal<>();
+
+    /**
+     * Create from agent options
+     *
+     * @param options the options, see above
+     * @throws IllegalArgumentException if the options are not valid
+     */
+    ScalaShadeAgent(String options) {
+        NamespaceTrie relocations = new NamespaceTrie();
+        boolean verbose = false;
+        try {
+            for (String option : (options != null ? options : "").split(",")) {
+                option = option.trim();
+                int equals = option.indexOf('=');
+                if (option.isEmpty()) {
+                    continue;
+                } else if (option.equals("verbose")) {
+                    verbose = true;
+                } else if (option.startsWith("!")) {
+                    relocations.exclude(option.substring(1));
+                } else if (equals != -1) {
+                    relocations.add(option.substring(0, equals), option.substring(equals + 1));
+                } else {
+                    RulesFile.read(new File(option), relocations);
+                }
+            }
+        } catch (CtxException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        if (relocations.isEmpty())
+            throw new IllegalArgumentException("No relocations given, use -javaagent:<jar>=<from>=<to> or =<rules file>");
+        this.transformer = new ScalaShadeTransformer(relocations, false, false);
+        this.verbose = verbose;
+    }
+
+    /**
+     * Install the agent, called by the JVM before main for -javaagent
+     *
+     * @param options         the agent options
+     * @param instrumentation instrumentation to add the agent to
+     * @throws IllegalArgumentException if the options are not valid
+     */
+    public static void premain(String options, Instrumentation instrumentation) {
+        final ScalaShadeAgent agent = new ScalaShadeAgent(options);
+        instrumentation.addTransformer(agent);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(agent, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("ScalaShade agent counters not published: " + e.getMessage());
+        }
+        if (agent.verbose)
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(agent.summary())));
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (transforming.get() != null)
+            return null;
+        transforming.set(Boolean.TRUE);
+        long start = System.nanoTime();
+        try {
+            byte[] updated = transformer.transform(className + ".class", classfileBuffer);
+            if (updated != null)
+                rewritten.incrementAndGet();
+            return updated;
+        } catch (IllegalArgumentException e) {
+            // The class is still loaded, as it would be without the agent
+            failed.incrementAndGet();
+            if (verbose)
+                System.err.println("ScalaShade agent could not update " + className + ": " + e.getMessage());
+            return null;
+        } finally {
+            nanos.addAndGet(System.nanoTime() - start);
+            inspected.incrementAndGet();
+            transforming.remove();
+        }
+    }
+
+    @Override
+    public long getClassesInspected() {
+        return inspected.get();
+    }
+
+    @Override
+    public long getClassesRewritten() {
+        return rewritten.get();
+    }
+
+    @Override
+    public long getClassesFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return nanos.get();
+    }
+
+    /**
+     * @return the counters as a message
+     */
+    String summary() {
+        return "ScalaShade agent: " + inspected.get() + " classes inspected, " + rewritten.get() + " rewritten, " +
+                failed.get() + " failed, " + nanos.get() / 1000000 + "ms";
+    }
+}
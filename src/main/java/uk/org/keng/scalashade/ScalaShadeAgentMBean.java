@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+/**
+ * Counters of the agent, published over JMX as {@link ScalaShadeAgent#OBJECT_NAME}
+ */
+public interface ScalaShadeAgentMBean {
+
+    /**
+     * @return number of classes passed to the agent as they were loaded
+     */
+    long getClassesInspected();
+
+    /**
+     * @return number of classes whose @ScalaSignature was updated
+     */
+    long getClassesRewritten();
+
+    /**
+     * @return number of classes that could not be updated, these are loaded unchanged
+     */
+    long getClassesFailed();
+
+    /**
+     * @return total time spent inspecting & updating classes, in nanoseconds
+     */
+    long getTotalNanos();
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry point for tools that embed ScalaShade. Relocations are compiled once when the transformer is created, after
+ * that it may be used from any number of threads at once.
+ * <p/>
+ * Classes can be transformed as bytes, or the @ScalaSignature of classes passing through an ASM pipeline can be
+ * updated by chaining in the visitor from {@link #adapter(ClassVisitor)}, so a shading tool that already rewrites
+ * classes with ASM needs no second pass.
+ */
+public class ScalaShadeTransformer {
+    private final NamespaceTrie relocations;
+    private final boolean compact;
+    private final RulesRemapper remapper;
+    private final ClassShader shader;
+
+    /**
+     * Create for relocations that only update @ScalaSignature
+     *
+     * @param relocations namespaces to change and what to change them to, such as "org.apache" to
+     *                    "shaded.org.apache"
+     * @throws IllegalArgumentException if the relocations conflict
+     */
+    public ScalaShadeTransformer(Map<String, String> relocations) {
+        this(relocations, Collections.<String>emptyList(), false, false);
+    }
+
+    /**
+     * Create for relocations & exclusions
+     *
+     * @param relocations      namespaces to change and what to change them to, such as "org.apache" to
+     *                         "shaded.org.apache"
+     * @param exclusions       namespaces, and everything within them, not to change
+     * @param compact          true to drop entries that are no longer used from updated signatures
+     * @param relocateBytecode true to relocate class names in bytecode as well as in @ScalaSignature
+     * @throws IllegalArgumentException if the relocations conflict
+     */
+    public ScalaShadeTransformer(Map<String, String> relocations, Collection<String> exclusions, boolean compact,
+                                 boolean relocateBytecode) {
+        this(trie(relocations, exclusions), compact, relocateBytecode);
+    }
+
+    /**
+     * Create for relocations that have already been compiled
+     *
+     * @param relocations      Absolute namespaces to change and what to change them to
+     * @param compact          true to drop entries that are no longer used from updated signatures
+     * @param relocateBytecode true to relocate class names in bytecode as well as in @ScalaSignature
+     */
+    ScalaShadeTransformer(NamespaceTrie relocations, boolean compact, boolean relocateBytecode) {
+        this.relocations = relocations;
+        this.compact = compact;
+        this.remapper = relocateBytecode ? new RulesRemapper(relocations) : null;
+        this.shader = new ClassShader(relocations, compact, relocateBytecode, null);
+    }
+
+    private static NamespaceTrie trie(Map<String, String> relocations, Collection<String> exclusions) {
+        NamespaceTrie trie = new NamespaceTrie();
+        try {
+            for (Map.Entry<String, String> relocation : relocations.entrySet()) {
+                trie.add(relocation.getKey(), relocation.getValue());
+            }
+            for (String exclusion : exclusions) {
+                trie.exclude(exclusion);
+            }
+        } catch (CtxException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        return trie;
+    }
+
+    /**
+     * Transform a class
+     *
+     * @param classBytes the class, this is not changed
+     * @return the updated class, or null if the class does not need changing
+     * @throws IllegalArgumentException if the bytes are not a class or its @ScalaSignature can't be updated
+     */
+    public byte[] transform(byte[] classBytes) {
+        return transform("class", classBytes);
+    }
+
+    /**
+     * Transform a class, naming it in errors
+     */
+    byte[] transform(String name, byte[] classBytes) {
+        ClassShader.Outcome outcome = shader.shade(name, classBytes);
+        if (outcome.failure != null)
+            throw new IllegalArgumentException(outcome.failure.getMessage(), outcome.failure);
+        return outcome.bytes;
+    }
+
+    /**
+     * Transform a class held in a buffer
+     *
+     * @param classBytes the class from its position to its limit, the buffer is not changed
+     * @return the updated class, or null if the class does not need changing
+     * @throws IllegalArgumentException if the bytes are not a class or its @ScalaSignature can't be updated
+     */
+    public ByteBuffer transform(ByteBuffer classBytes) {
+        byte[] bytes = new byte[classBytes.remaining()];
+        classBytes.duplicate().get(bytes);
+        byte[] updated = transform(bytes);
+        return updated != null ? ByteBuffer.wrap(updated) : null;
+    }
+
+    /**
+     * Path to write a class to, this only differs from the original when class names in bytecode are relocated
+     *
+     * @param path path of the class, such as "org/apache/Foo.class"
+     * @return the path of the class after relocation
+     */
+    public String mapPath(String path) {
+        return remapper != null ? remapper.mapEntryName(path) : path;
+    }
+
+    /**
+     * Create a visitor that updates the @ScalaSignature of a class on its way to another visitor, class names in the
+     * bytecode are also relocated if the transformer was created to do so. The visitor is for a single class.
+     *
+     * @param next visitor to pass the class on to
+     * @return the visitor to chain in
+     * @throws IllegalArgumentException from visiting if the @ScalaSignature can't be updated
+     */
+    public ClassVisitor adapter(ClassVisitor next) {
+        ClassVisitor adapter = new SignatureAdapter(next);
+        return remapper != null ? new ClassRemapper(adapter, remapper) : adapter;
+    }
+
+    /**
+     * Update an encoded signature
+     *
+     * @return the new encoding, or the chunks given if nothing changes
+     */
+    private List<String> shade(List<String> chunks) {
+        try {
+            byte[] sigBytes = Encoding.decode(chunks);
+            if (sigBytes == null)
+                throw new CtxException("ScalaSignature could not be decoded");
+            if (!ScalaSig.mayReference(sigBytes, relocations))
+                return chunks;
+            ScalaSig sig = ScalaSig.parse(sigBytes);
+            if (sig.replace(relocations) == 0)
+                return chunks;
+            if (compact)
+                sig.compact();
+            return sig.encode();
+        } catch (CtxException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Visitor that holds back signature annotations until all of their value has been seen, then passes on the
+     * updated signature
+     */
+    private final class SignatureAdapter extends ClassVisitor {
+
+        SignatureAdapter(ClassVisitor cv) {
+            super(Opcodes.ASM7, cv);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            boolean isSignature = desc.endsWith(ClassFile.SCALA_SIGNATURE_SUFFIX) ||
+                    desc.endsWith(ClassFile.SCALA_LONG_SIGNATURE_SUFFIX);
+            if (!visible || !isSignature)
+                return super.visitAnnotation(desc, visible);
+
+            final List<String> chunks = new ArrayList<>();
+            return new AnnotationVisitor(Opcodes.ASM7) {
+                @Override
+                public void visit(String name, Object value) {
+                    if ("bytes".equals(name) && value instanceof String)
+                        chunks.add((String) value);
+                }
+
+                @Override
+                public AnnotationVisitor visitArray(String name) {
+                    if (!"bytes".equals(name))
+                        return null;
+                    return new AnnotationVisitor(Opcodes.ASM7) {
+                        @Override
+                        public void visit(String name, Object value) {
+                            if (value instanceof String)
+                                chunks.add((String) value);
+                        }
+                    };
+                }
+
+                @Override
+                public void visitEnd() {
+                    ScalaSigClass.visitSignature(cv, desc, shade(chunks));
+                }
+            };
+        }
+    }
+}
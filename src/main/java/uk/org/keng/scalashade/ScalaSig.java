@@ -16,9 +16,10 @@
 
 package uk.org.keng.scalashade;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
 
 /**
  * Partial signature decoding, modification & encoding, reversed from
@@ -56,6 +57,21 @@ class ScalaSig {
         _table = table;
     }
 
+    /**
+     * Parse a signature from its encoded form, as found in a ScalaSignature or ScalaLongSignature annotation. The
+     * chunks are decoded directly into the buffer that is parsed.
+     *
+     * @param chunks encoded signature, one or more strings
+     * @return the decoded signature data
+     * @throws CtxException
+     */
+    static ScalaSig parse(List<String> chunks) throws CtxException {
+        byte[] bytes = Encoding.decode(chunks);
+        if (bytes == null)
+            throw new CtxException("ScalaSignature could not be decoded");
+        return parse(bytes);
+    }
+
     /**
      * Parse a signature from a byte stream
      *
@@ -64,34 +80,32 @@ class ScalaSig {
      * @throws CtxException
      */
     static ScalaSig parse(byte[] in) throws CtxException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(in);
+        Nat.Reader reader = new Nat.Reader(in);
 
         // Pull version info & check OK
-        int major = Nat.read(bis);
-        int minor = Nat.read(bis);
+        int major = reader.readNat();
+        int minor = reader.readNat();
         if (major!=5 || minor!=0) {
             throw new CtxException("Unexpected signature version found: "+major+"."+minor);
         }
 
-        // Pull table
-        int tblEntries = Nat.read(bis);
-        Table table = new Table();
+        // Record where each entry is, each needs at least a type & length byte
+        int tblEntries = reader.readNat();
+        if (tblEntries > reader.remaining() / 2) {
+            throw new CtxException("Unexpected EOF in signature data");
+        }
+        Table table = new Table(in, reader.position(), tblEntries);
         for (int e = 0; e < tblEntries; e++) {
-            int type = bis.read();
-            int size = Nat.read(bis);
-            byte[] raw = new byte[size];
-            if (bis.read(raw, 0, size) != size) {
-                throw new CtxException("Unexpected EOF in signature data");
-            }
-            table.addEntry(type, raw);
+            int type = reader.readByte();
+            int size = reader.readNat();
+            int offset = reader.position();
+            reader.skip(size);
+            table.addEntry(type, offset, size);
         }
 
-        // The input stream should be consumed at this point but a 'feature' of the encoding is
+        // The input should be consumed at this point but a 'feature' of the encoding is
         // that there may be a trailer 0 byte, just check all look good
-        int trail = bis.read();
-        if (trail == 0)
-            trail = bis.read();
-        if (trail != -1)
+        if (reader.hasRemaining() && (reader.readByte() != 0 || reader.hasRemaining()))
             throw new CtxException("Unexpected additional byte found at end of signature");
 
         // All good so create signature
@@ -99,30 +113,116 @@ class ScalaSig {
         return new ScalaSig(major, minor, table);
     }
 
+    /**
+     * Fast negative check of whether a signature could refer to a relocated namespace. Namespaces are stored as a
+     * TermName per component so any reference must include the UTF-8 bytes of a first component somewhere in the
+     * signature. Finding them does not mean a namespace is referenced, not finding them means none can be.
+     *
+     * @param signature   the decoded signature bytes
+     * @param relocations the relocations
+     * @return false if the signature can not refer to any relocated namespace
+     */
+    static boolean mayReference(byte[] signature, NamespaceTrie relocations) {
+        for (byte[] first : relocations.firstNames()) {
+            if (indexOf(signature, first) != -1)
+                return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        if (pattern.length == 0)
+            return 0;
+        byte first = pattern[0];
+        int last = data.length - pattern.length;
+        search:
+        for (int at = 0; at <= last; at++) {
+            if (data[at] != first)
+                continue;
+            for (int i = 1; i < pattern.length; i++) {
+                if (data[at + i] != pattern[i])
+                    continue search;
+            }
+            return at;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the table of entries
+     *
+     * @return the table
+     */
+    Table table() {
+        return _table;
+    }
+
     /**
      * Replace a namespace in the table with another namespace
      *
      * @param replace the namespace to replace, use '.' separators as usual
      * @param with    the namespace to use instead, use '.' separators as usual
-     * @return the number of namespaces that were updated
+     * @return the number of namespaces and string literals that were updated
      */
     int replace(String replace, String with) {
-        return _table.replace(replace, with);
+        return replace(new NamespaceTrie(replace, with));
+    }
+
+    /**
+     * Replace namespaces in the table with other namespaces
+     *
+     * @param relocations the namespaces to replace and what to replace them with
+     * @return the number of namespaces and string literals that were updated
+     */
+    int replace(NamespaceTrie relocations) {
+        return _table.replace(relocations);
+    }
+
+    /**
+     * Drop table entries that are no longer used after a replace, see {@link Table#compact()}
+     *
+     * @return the number of entries dropped
+     */
+    int compact() {
+        return _table.compact();
     }
 
     /**
-     * Get a byte array containing the encoded signature
+     * Get a byte array containing the signature
      * @return the byte array
      */
     byte[] asBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size());
+        write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the encoded signature ready for storing in an annotation. The table is written directly into the
+     * encoding so the raw signature bytes are never collected.
+     * @return the encoded chunks, a single chunk can be stored in a ScalaSignature, more need a ScalaLongSignature
+     */
+    List<String> encode() {
+        EncodedOutput out = new EncodedOutput(size());
+        write(out);
+        return out.toChunks();
+    }
+
+    /**
+     * Number of bytes in the raw signature
+     * @return the size in bytes
+     */
+    int size() {
+        return Nat.size(_majorVersion) + Nat.size(_minorVersion) + _table.size();
+    }
+
+    private void write(OutputStream out) {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
             Nat.write(_majorVersion, out);
             Nat.write(_minorVersion, out);
             _table.write(out);
-            return out.toByteArray();
         } catch (IOException e) {
-            throw new CtxException("Unexpected error converting signature to byte array", e);
+            throw new CtxException("Unexpected error writing signature", e);
         }
     }
 
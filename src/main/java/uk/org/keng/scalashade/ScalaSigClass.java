@@ -16,29 +16,33 @@
 
 package uk.org.keng.scalashade;
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.tree.AnnotationNode;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
 
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 
 /**
- * Helper for classes that may contain a @ScalaSignature annotation
+ * Helper for classes that may contain a @ScalaSignature annotation. The annotations are recognised by the end of
+ * their descriptor so they are found whatever package scala.reflect has been shaded to. The class is read and
+ * rewritten with {@link ClassFile}, which only touches the parts of the class that hold the signature. When class
+ * names in the bytecode are also being relocated the class is rewritten by ASM instead, with the signature replaced
+ * in the same pass.
  */
 class ScalaSigClass {
 
-    private static final String SCALA_LONG_SIGNATURE_DESC = "Lscala211/reflect/ScalaLongSignature;";
-    private static final String SCALA_SIGNATURE_DESC = "Lscala211/reflect/ScalaSignature;";
-
-    private final ClassNode _clazz = new ClassNode();
-    private int sigAnnotation = -1;
+    private final String _path;
+    private final byte[] _bytes;
+    private ClassFile _classFile;
+    private byte[] sigBytes = null;
     private ScalaSig sig = null;
 
     /**
@@ -47,13 +51,7 @@ class ScalaSigClass {
      * @param path the class file
      */
     public ScalaSigClass(String path) {
-        FileInputStream in;
-        try {
-            in = new FileInputStream(path);
-        } catch (IOException e) {
-            throw new CtxException("Could not open/read file: " + path);
-        }
-        load(path, in);
+        this(path, readFile(path));
     }
 
     /**
@@ -63,94 +61,114 @@ class ScalaSigClass {
      * @param in   stream of class byte code
      */
     public ScalaSigClass(String path, InputStream in) {
-        load(path, in);
+        this(path, readStream(path, in));
     }
 
     /**
-     * Private constructor, loads the class & parses @ScalaSignature if present
+     * Create from path and class bytes
      *
-     * @param path path of class, just for error reporting
-     * @param in   stream of class byte code
+     * @param path  path of class, just for error reporting
+     * @param bytes class byte code
      */
-    private void load(String path, InputStream in) {
+    public ScalaSigClass(String path, byte[] bytes) {
+        _path = path;
+        _bytes = bytes;
+        load();
+    }
 
-        // Load class into ASM
+    private static byte[] readFile(String path) {
         try {
-            ClassReader cr = new ClassReader(in);
-            cr.accept(_clazz, 0);
+            return Files.readAllBytes(Paths.get(path));
         } catch (IOException e) {
-            throw new CtxException("Could not read file: " + path);
-        }
-
-        // Extract ScalaSignature annotation bytes & check all looks OK
-        int at = 0;
-        if (_clazz.visibleAnnotations != null) {
-            for (AnnotationNode an : visibleAnnotations(_clazz)) {
-                switch (an.desc) {
-                    case SCALA_LONG_SIGNATURE_DESC:
-                    case SCALA_SIGNATURE_DESC:
-                        validateSignature(an, path);
-                        sig = loadSignature(an, path);
-                        sigAnnotation = at;
-                }
-                at++;
-            }
+            throw new CtxException("Could not open/read file: " + path);
         }
     }
 
-    private void validateSignature(AnnotationNode annotation, String path) {
-        if (sigAnnotation != -1)
-            throw new CtxException("Multiple ScalaSignature annotations found in: " + path);
-        if (annotation.values.size() != 2)
-            throw new CtxException("ScalaSignature has wrong number of values in: " + path);
-        if (!(annotation.values.get(0) instanceof String))
-            throw new CtxException("ScalaSignature has wrong type for value 0 in: " + path);
-        if (!annotation.values.get(0).equals("bytes"))
-            throw new CtxException("ScalaSignature has wrong first value in " + path);
+    private static byte[] readStream(String path, InputStream in) {
+        try {
+            return FileUtil.readFully(in, -1);
+        } catch (IOException e) {
+            throw new CtxException("Could not read file: " + path);
+        }
     }
 
-    private ScalaSig loadSignature(AnnotationNode annotation, String path) {
-        String signatureString = "";
-        if (annotation.desc.equals(SCALA_LONG_SIGNATURE_DESC)) {
-            if (!(annotation.values.get(1) instanceof List)) {
-                throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
-            }
-            for (String part : ((List<String>) annotation.values.get(1))) {
-                System.out.println(part.length());
-                signatureString += part;
-            }
-        } else {
-            if (!(annotation.values.get(1) instanceof String)) {
-                throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
-            }
-            signatureString = (String) annotation.values.get(1);
+    /**
+     * Loads the class & decodes @ScalaSignature if present, parsing is left until the signature is needed. Classes
+     * whose constant pool shows they can't have a @ScalaSignature are not read any further.
+     */
+    private void load() {
+        try {
+            _classFile = new ClassFile(_bytes);
+            if (!_classFile.mayHaveScalaSignature() || !_classFile.findScalaSignature())
+                return;
+            sigBytes = Encoding.decode(_classFile.signatureChunks());
+        } catch (CtxException e) {
+            throw new CtxException("Could not read file: " + _path, e);
         }
-        byte[] signatureBytes = Encoding.decode(signatureString);
-        if (null == signatureBytes) {
-            throw new CtxException("ScalaSignature could not be decoded in " + path);
+        if (null == sigBytes) {
+            throw new CtxException("ScalaSignature could not be decoded in " + _path);
         }
-        return ScalaSig.parse(signatureBytes);
     }
 
     /**
-     * Get access to the @ScalaSignature
+     * Get access to the @ScalaSignature, this is parsed on first use
      *
      * @return ScalaSig or null if no @ScalaSignature present
+     * @throws CtxException if the signature can not be parsed
      */
     public ScalaSig getSig() {
+        if (sig == null && sigBytes != null) {
+            try {
+                sig = ScalaSig.parse(sigBytes);
+            } catch (CtxException e) {
+                throw new CtxException("ScalaSignature could not be parsed in " + _path, e);
+            }
+        }
         return sig;
     }
 
+    /**
+     * Fast negative check of whether the @ScalaSignature could refer to a relocated namespace, see
+     * {@link ScalaSig#mayReference(byte[], NamespaceTrie)}. This is done on the decoded bytes without parsing them.
+     *
+     * @param relocations the relocations
+     * @return false if there is no @ScalaSignature or it can not refer to a relocated namespace
+     */
+    public boolean mayReference(NamespaceTrie relocations) {
+        return sigBytes != null && ScalaSig.mayReference(sigBytes, relocations);
+    }
+
+    /**
+     * Fast negative check of whether the bytecode of the class could refer to a relocated namespace, see
+     * {@link ClassFile#mayContainClassName(List)}
+     *
+     * @param relocations the relocations
+     * @return false if no class name in the bytecode can be relocated
+     */
+    public boolean mayReferenceInBytecode(NamespaceTrie relocations) {
+        return _classFile.mayContainClassName(relocations.internalNames());
+    }
+
+    /**
+     * Get the class bytes as loaded
+     *
+     * @return the original class byte code
+     */
+    public byte[] getOriginalBytes() {
+        return _bytes;
+    }
+
     /**
      * Write the class byte to a file, will include any modification to @ScalaSignature
      *
-     * @param path where to write
+     * @param path      where to write
+     * @param relocated the class from {@link #getBytes(RulesRemapper)}, or null to only update the @ScalaSignature
      * @throws CtxException
      */
-    public void writeTo(String path) throws CtxException {
+    public void writeTo(String path, byte[] relocated) throws CtxException {
         try {
             FileOutputStream os = new FileOutputStream(path);
-            os.write(getBytes());
+            os.write(relocated != null ? relocated : getBytes());
             os.close();
         } catch (IOException ex) {
             throw new CtxException("Could not open/read file: " + path);
@@ -158,76 +176,95 @@ class ScalaSigClass {
     }
 
     /**
-     * Get class bytes, will include any modification to @ScalaSignature
+     * Get class bytes, will include any modification to @ScalaSignature. Only the constants holding the signature,
+     * and the annotation if the number of chunks changes, differ from the original class.
      *
      * @return the (possibly updated) class byte code
      */
     public byte[] getBytes() {
-        /*
-    	ArrayList<String> splits = splits(Encoding.encode(sig.asBytes()));
-
-        // Update annotation
-        if (sigAnnotation != -1) {
-            if (splits.size() == 1) {
-                setAnnotation(_clazz, sigAnnotation, splits.get(0));
-            } else {
-                setAnnotation(_clazz, sigAnnotation, splits);
-            }
-        }
-        */
-        if (sigAnnotation != -1) {
-            visibleAnnotations(_clazz).remove(sigAnnotation);
-            if (_clazz.attrs != null) {
-                for (int i = 0; i < _clazz.attrs.size(); i++) {
-                    if (_clazz.attrs.get(i).type.equals("ScalaSig")) {
-                        _clazz.attrs.remove(i);
-                        break;
-                    }
-                }
-            }
+        if (sigBytes == null || sig == null)
+            return _bytes;
+        try {
+            return _classFile.withSignature(sig.encode());
+        } catch (CtxException e) {
+            throw new CtxException("Could not update ScalaSignature in " + _path, e);
         }
-
-        // Convert to byte code
-        ClassWriter cw = new ClassWriter(0);
-        _clazz.accept(cw);
-        return cw.toByteArray();
     }
-    
-    /* According to: http://www.scala-lang.org/old/sites/default/files/sids/dubochet/Mon,%202010-05-31,%2015:25/Storage%20of%20pickled%20Scala%20signatures%20in%20class%20files.pdf
-     * MAX_SPLIT_SIZE should be 65535
-     * Yet for my case it didn't work.
-     * The largest number that works for okapi shade use case is 65493. */
-    private static final int MAX_SPLIT_SIZE = 65493;
-    private ArrayList<String> splits(String encoded){
-    	
-    	ArrayList<String> splits = new ArrayList<>();
-    	int splitCount = (encoded.length()/MAX_SPLIT_SIZE) + 1;
-    	for(int i=0;i<splitCount;i++){
-    		splits.add(
-    			encoded.substring(
-    				i*MAX_SPLIT_SIZE, 
-    				Math.min(
-    					(i+1)*MAX_SPLIT_SIZE,
-    					encoded.length()
-    				)
-    			)
-    		);
-    	}
-    	return splits;
+
+    /**
+     * Get class bytes with the class names in the bytecode relocated, this covers the constant pool, descriptors
+     * and generic signatures. If the @ScalaSignature has been parsed it is replaced in the same pass.
+     *
+     * @param remapper the relocations to apply to the bytecode
+     * @return the updated class byte code, or null if no class name in the bytecode is relocated
+     */
+    public byte[] getBytes(RulesRemapper remapper) {
+        try {
+            ClassReader cr = new ClassReader(_bytes);
+            ClassWriter cw = new ClassWriter(0);
+            RulesRemapper.Tracker tracker = remapper.track();
+            ClassVisitor cv = new ClassRemapper(cw, tracker);
+            if (sigBytes != null && sig != null)
+                cv = new SignatureReplacer(cv, sig.encode());
+            cr.accept(cv, 0);
+            return tracker.relocated() ? cw.toByteArray() : null;
+        } catch (RuntimeException e) {
+            throw new CtxException("Could not relocate bytecode in " + _path, e);
+        }
     }
 
-    private static List<AnnotationNode> visibleAnnotations(ClassNode clazz) {
-        return clazz.visibleAnnotations;
+    /**
+     * Visitor that writes a new signature in place of the signature annotation, the annotation is kept in the
+     * package of the original and will be relocated by a following remapper if that package is
+     */
+    private static class SignatureReplacer extends ClassVisitor {
+        private final List<String> _chunks;
+
+        SignatureReplacer(ClassVisitor cv, List<String> chunks) {
+            super(Opcodes.ASM7, cv);
+            _chunks = chunks;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            boolean isSignature = desc.endsWith(ClassFile.SCALA_SIGNATURE_SUFFIX) ||
+                    desc.endsWith(ClassFile.SCALA_LONG_SIGNATURE_SUFFIX);
+            if (!visible || !isSignature)
+                return super.visitAnnotation(desc, visible);
+
+            visitSignature(cv, desc, _chunks);
+
+            // The original values are dropped
+            return null;
+        }
     }
 
-    private static <T> void setAnnotation(ClassNode clazz, int index, T content) {
-        AnnotationNode an = visibleAnnotations(clazz).get(index);
-        if (content instanceof List && an.desc.equals(SCALA_SIGNATURE_DESC)) {
-            AnnotationNode longAN = new AnnotationNode(SCALA_LONG_SIGNATURE_DESC);
-            longAN.values = Arrays.asList("bytes", content);
+    /**
+     * Write a signature annotation, as @ScalaSignature if the signature is a single chunk otherwise as
+     * @ScalaLongSignature
+     *
+     * @param cv     visitor to write to, nothing is written if it skips the annotation
+     * @param desc   descriptor of the original annotation, the new one is written in the same package
+     * @param chunks the encoded signature
+     */
+    static void visitSignature(ClassVisitor cv, String desc, List<String> chunks) {
+        String sigPackage = desc.substring(0, desc.lastIndexOf('/') + 1);
+        if (chunks.size() == 1) {
+            AnnotationVisitor av = cv.visitAnnotation(sigPackage + "ScalaSignature;", true);
+            if (av == null)
+                return;
+            av.visit("bytes", chunks.get(0));
+            av.visitEnd();
         } else {
-            an.values.set(1, content);
+            AnnotationVisitor av = cv.visitAnnotation(sigPackage + "ScalaLongSignature;", true);
+            if (av == null)
+                return;
+            AnnotationVisitor array = av.visitArray("bytes");
+            for (String chunk : chunks) {
+                array.visit(null, chunk);
+            }
+            array.visitEnd();
+            av.visitEnd();
         }
     }
-
 }
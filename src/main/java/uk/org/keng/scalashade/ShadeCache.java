@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On disk cache of the outcome of shading classes, so classes that were handled by an earlier run are not parsed
+ * again. Outcomes are keyed by a SHA-256 of the class bytes and of the rules & options used, each is either that the
+ * class is unchanged or the bytes of the updated class.
+ * <p/>
+ * The directory may be shared by many processes. Outcomes are written to a temporary file and moved into place so a
+ * reader only ever sees whole files, a file that is not valid is treated as a miss. When the cache grows beyond its
+ * limit the least recently used outcomes are removed.
+ */
+class ShadeCache {
+
+    /**
+     * Returned by {@link #lookup(String)} when the class is unchanged
+     */
+    static final byte[] UNCHANGED = new byte[0];
+
+    /**
+     * Default size limit in bytes
+     */
+    static final long DEFAULT_MAX_BYTES = 512L << 20;
+
+    /**
+     * Bump when the outcome of shading the same class with the same rules could differ
+     */
+    private static final String FORMAT = "scalashade-cache-1";
+
+    private static final byte[] MAGIC = {'S', 'S', 'C', '1'};
+    private static final byte KIND_UNCHANGED = 0;
+    private static final byte KIND_UPDATED = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Temporary files older than this were left by a process that failed
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private final Path _directory;
+    private final long _maxBytes;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _stored = new AtomicLong();
+
+    /**
+     * Open a cache, creating the directory if needed
+     *
+     * @param directory the cache directory
+     * @param maxBytes  size the cache is trimmed to
+     * @throws CtxException if the directory can not be created
+     */
+    ShadeCache(File directory, long maxBytes) {
+        if (maxBytes < 0)
+            throw new CtxException("Cache size should not be negative: " + maxBytes);
+        _directory = directory.toPath();
+        _maxBytes = maxBytes;
+        try {
+            Files.createDirectories(_directory);
+        } catch (IOException e) {
+            throw new CtxException("Could not create cache directory: " + directory.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Hash the rules & options that affect the outcome of shading a class
+     *
+     * @param relocations the relocations
+     * @param compact     true if signatures are compacted
+     * @param bytecode    true if bytecode is relocated
+     * @return hash to pass to {@link #key(byte[], byte[])}
+     */
+    static byte[] rulesHash(NamespaceTrie relocations, boolean compact, boolean bytecode) {
+        MessageDigest digest = sha256();
+        digest.update((FORMAT + "\ncompact " + compact + "\nbytecode " + bytecode + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        for (String rule : relocations.rules()) {
+            digest.update((rule + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Key for the outcome of shading a class
+     *
+     * @param rulesHash hash from {@link #rulesHash(NamespaceTrie, boolean, boolean)}
+     * @param classBytes the class
+     * @return the key, a hex string
+     */
+    static String key(byte[] rulesHash, byte[] classBytes) {
+        MessageDigest digest = sha256();
+        digest.update(rulesHash);
+        digest.update(classBytes);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CtxException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Find the outcome for a key, this may be called from any thread
+     *
+     * @param key the key
+     * @return null if not cached, {@link #UNCHANGED} if the class is unchanged, otherwise the updated class
+     */
+    byte[] lookup(String key) {
+        Path path = path(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        if (bytes.length < MAGIC.length + 1 || !startsWithMagic(bytes) ||
+                (bytes[MAGIC.length] != KIND_UNCHANGED && bytes[MAGIC.length] != KIND_UPDATED)) {
+            _misses.incrementAndGet();
+            delete(path);
+            return null;
+        }
+
+        // Touch so eviction sees it as recently used, another process may have removed it which is fine
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Ignore
+        }
+        _hits.incrementAndGet();
+        if (bytes[MAGIC.length] == KIND_UNCHANGED)
+            return UNCHANGED;
+        byte[] updated = new byte[bytes.length - MAGIC.length - 1];
+        System.arraycopy(bytes, MAGIC.length + 1, updated, 0, updated.length);
+        return updated;
+    }
+
+    private static boolean startsWithMagic(byte[] bytes) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record the outcome for a key, this may be called from any thread. Failing to write is not an error, the
+     * outcome is just not cached.
+     *
+     * @param key     the key
+     * @param updated the updated class, or null if the class is unchanged
+     */
+    void store(String key, byte[] updated) {
+        Path path = path(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(path.getParent());
+            temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), TEMP_SUFFIX);
+            byte[] bytes = new byte[MAGIC.length + 1 + (updated != null ? updated.length : 0)];
+            System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+            bytes[MAGIC.length] = updated != null ? KIND_UPDATED : KIND_UNCHANGED;
+            if (updated != null)
+                System.arraycopy(updated, 0, bytes, MAGIC.length + 1, updated.length);
+            Files.write(temp, bytes);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            _stored.incrementAndGet();
+        } catch (IOException e) {
+            // Another process may have stored the same outcome, either way the cache is still consistent
+            if (temp != null)
+                delete(temp);
+        }
+    }
+
+    /**
+     * Remove the least recently used outcomes until the cache is within its size limit, along with temporary
+     * files left by failed processes. Files removed by other processes at the same time are skipped. Nothing is
+     * done if no outcomes have been stored through this instance, as the cache can not have grown.
+     *
+     * @return the number of files removed
+     */
+    int trim() {
+        if (_stored.get() == 0)
+            return 0;
+
+        final List<Path> paths = new ArrayList<>();
+        final List<BasicFileAttributes> attributes = new ArrayList<>();
+        try {
+            Files.walkFileTree(_directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    paths.add(file);
+                    attributes.add(attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return 0;
+        }
+
+        // Oldest first
+        Integer[] order = new Integer[paths.size()];
+        long total = 0;
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            total += attributes.get(i).size();
+        }
+        Arrays.sort(order, (a, b) ->
+                attributes.get(a).lastModifiedTime().compareTo(attributes.get(b).lastModifiedTime()));
+
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        for (int i : order) {
+            Path path = paths.get(i);
+            BasicFileAttributes attrs = attributes.get(i);
+            boolean temp = path.getFileName().toString().endsWith(TEMP_SUFFIX);
+            if (temp ? now - attrs.lastModifiedTime().toMillis() > STALE_TEMP_MILLIS : total > _maxBytes) {
+                if (delete(path)) {
+                    removed++;
+                    total -= attrs.size();
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return number of lookups that found an outcome
+     */
+    long hits() {
+        return _hits.get();
+    }
+
+    /**
+     * @return number of lookups that did not find an outcome
+     */
+    long misses() {
+        return _misses.get();
+    }
+
+    private Path path(String key) {
+        return _directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    private static boolean delete(Path path) {
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
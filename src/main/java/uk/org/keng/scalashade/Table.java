@@ -6,19 +6,21 @@ import uk.org.keng.scalashade.model.RawEntry;
 import uk.org.keng.scalashade.model.TableEntry;
 import uk.org.keng.scalashade.model.TermNameEntry;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
- * Collection of entries from the ScalaSignature. Most types of entry are simply stored as raw bytes. The two cases
- * we are interested in are decoded and indexed. Methods are provided for renaming a namespace.
+ * Collection of entries from the ScalaSignature. Entries are not copied out of the signature, the table keeps the
+ * decoded signature buffer and records the type, offset and length of each entry's payload. Only entries that are
+ * changed by a replace, or added to the table, are held as entry objects. Methods are provided for renaming a
+ * namespace and for compacting the table once entries are no longer used.
  */
 public class Table {
 
@@ -46,43 +48,114 @@ public class Table {
         public static final int LITERALenum = 36;
     }
 
-    private final List<TableEntry> entries = new ArrayList<>();
-    private final Map<Integer, ExtModClassRefEntry> extModClassRefEntriesMap = new HashMap<>();
-    private final Map<Integer, TermNameEntry> termNameMap = new HashMap<>();
-    private final Map<Integer, ConstantTypeEntry> constantTypeEntryMap = new HashMap<>();
+    private byte[] buffer;
+    private int entriesStart;
+    private int[] types;
+    private int[] offsets;
+    private int[] lengths;
+    private int count = 0;
+
+    private final TreeMap<Integer, TableEntry> replaced = new TreeMap<>();
+    private final List<TableEntry> added = new ArrayList<>();
+
+    // Entries that can be reused when adding namespaces, built when a replace needs them. Names and targets are
+    // recorded by their ids in the relocation trie, -1 where the table has no entry for them yet.
+    private int[] nameRefs = null;
+    private int[] targetRefs = null;
+    private Map<Long, Integer> classRefs = null;
 
     /**
-     * Create a new table entry from its type & raw bytes.
+     * Create a table over a signature buffer, entries are then recorded with {@link #addEntry(int, int, int)}
      *
-     * @param type the entry type
-     * @param raw the raw bytes for the entry
+     * @param buffer       the decoded signature
+     * @param entriesStart offset of the first entry header in the buffer
+     * @param entryCount   number of entries that will be added
      */
-    void addEntry(int type, byte[] raw) {
-        switch (type) {
-            case EntryType.TERM_NAME_ID:
-                TermNameEntry term = new TermNameEntry(raw);
-                entries.add(term);
-                termNameMap.put(entries.size() - 1, term);
-                break;
-            case EntryType.EXT_MOD_CLASS_REF_ID:
-                ExtModClassRefEntry classRef = new ExtModClassRefEntry(raw);
-                entries.add(classRef);
-                extModClassRefEntriesMap.put(entries.size() - 1, classRef);
-                break;
-            case EntryType.CONSTANT_TYPE_ID:
-                ConstantTypeEntry constantTypeEntry = new ConstantTypeEntry(raw);
-                entries.add(constantTypeEntry);
-                constantTypeEntryMap.put(entries.size() - 1, constantTypeEntry);
-                break;
-            default:
-                entries.add(new RawEntry(type, raw));
-                break;
+    Table(byte[] buffer, int entriesStart, int entryCount) {
+        this.buffer = buffer;
+        this.entriesStart = entriesStart;
+        types = new int[entryCount];
+        offsets = new int[entryCount];
+        lengths = new int[entryCount];
+    }
+
+    /**
+     * Record the next table entry. Entries must be added in order and be contiguous in the buffer.
+     *
+     * @param type   the entry type
+     * @param offset offset of the entry payload in the buffer
+     * @param length length of the payload
+     */
+    void addEntry(int type, int offset, int length) {
+        types[count] = type;
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+    }
+
+    /**
+     * Number of entries in the table, including any that have been added
+     *
+     * @return the entry count
+     */
+    int entryCount() {
+        return count + added.size();
+    }
+
+    /**
+     * Reader over the payload of an entry from the signature buffer
+     */
+    private Nat.Reader reader(int index) {
+        return new Nat.Reader(buffer, offsets[index], lengths[index]);
+    }
+
+    /**
+     * Test if an index is an original entry of the given type
+     */
+    private boolean isType(int index, int type) {
+        return index >= 0 && index < count && types[index] == type;
+    }
+
+    /**
+     * Get the ExtModClassRef entry at an index for updating, creating it from the buffer if needed
+     */
+    private ExtModClassRefEntry classRefForUpdate(int index) {
+        TableEntry entry = replaced.get(index);
+        if (entry == null) {
+            entry = new ExtModClassRefEntry(Arrays.copyOfRange(buffer, offsets[index], offsets[index] + lengths[index]));
+            replaced.put(index, entry);
         }
+        return (ExtModClassRefEntry) entry;
     }
 
+    /**
+     * Get the trie name id of an original TermName entry, matching its bytes in place
+     *
+     * @param index       the entry
+     * @param relocations the relocation trie
+     * @param nameIds     ids found so far plus one, by entry index, 0 where not yet found
+     * @return the name id, or -1 if the name is not in the trie
+     */
+    private int nameId(int index, NamespaceTrie relocations, int[] nameIds) {
+        int id = nameIds[index] - 1;
+        if (id == -1) {
+            id = relocations.nameId(buffer, offsets[index], lengths[index]);
+            nameIds[index] = id + 1;
+        }
+        return id;
+    }
 
-    void findOutWhatItIs(TableEntry entry, List<Integer> list, String replace) {
-        switch (entry.type()) {
+    /**
+     * Locate TermName entries used as string literals by ConstantType entries that start with a relocated namespace
+     *
+     * @param constantType index of a ConstantType entry
+     * @param list         indexes of TermName entries to relocate
+     */
+    private void findOutWhatItIs(int constantType, List<Integer> list) {
+        int index = reader(constantType).readNat();
+        if (index >= count)
+            return;
+        switch (types[index]) {
 //            case LITERALunit    => Constant(())
 //            case LITERALboolean => Constant(readLong(len) != 0L)
 //            case LITERALbyte    => Constant(readLong(len).toByte)
@@ -93,11 +166,9 @@ public class Table {
 //            case LITERALfloat   => Constant(intBitsToFloat(readLong(len).toInt))
 //            case LITERALdouble  => Constant(longBitsToDouble(readLong(len)))
             case EntryType.LITERALstring:
-                int index = Nat.read(new ByteArrayInputStream(entry.payload()));
-                TableEntry e = entries.get(index);
-                String s = new String(e.payload(), StandardCharsets.UTF_8);
-                if (s.startsWith(replace)) {
-                    list.add(index);
+                int nameIndex = reader(index).readNat();
+                if (isType(nameIndex, EntryType.TERM_NAME_ID)) {
+                    list.add(nameIndex);
                 }
                 break;
 //            case LITERALnull    => Constant(null)
@@ -108,113 +179,547 @@ public class Table {
     }
 
     /**
-     * Write the table as a byte stream
+     * Write the table as a byte stream. Runs of original entries that have not been replaced are copied directly
+     * from the signature buffer, headers included.
      *
      * @param out the stream to write to
      * @throws IOException
      */
-    void write(ByteArrayOutputStream out) throws IOException {
-        Nat.write(entries.size(), out);
-        for (TableEntry e : entries) {
+    void write(OutputStream out) throws IOException {
+        Nat.write(entryCount(), out);
+        int runStart = entriesStart;
+        for (Map.Entry<Integer, TableEntry> e : replaced.entrySet()) {
+            int index = e.getKey();
+            out.write(buffer, runStart, headerStart(index) - runStart);
+            e.getValue().write(out);
+            runStart = offsets[index] + lengths[index];
+        }
+        out.write(buffer, runStart, end() - runStart);
+        for (TableEntry e : added) {
             e.write(out);
         }
     }
 
     /**
-     * Replace a namespace in the table with another namespace
+     * Number of bytes {@link #write(OutputStream)} will produce
+     *
+     * @return the size in bytes
+     */
+    int size() {
+        int size = Nat.size(entryCount()) + end() - entriesStart;
+        for (Map.Entry<Integer, TableEntry> e : replaced.entrySet()) {
+            int index = e.getKey();
+            size += e.getValue().size() - (offsets[index] + lengths[index] - headerStart(index));
+        }
+        for (TableEntry e : added) {
+            size += e.size();
+        }
+        return size;
+    }
+
+    /**
+     * Offset of the type byte of an original entry, entries are contiguous so this follows the previous entry
+     */
+    private int headerStart(int index) {
+        return index == 0 ? entriesStart : offsets[index - 1] + lengths[index - 1];
+    }
+
+    /**
+     * Offset just past the last original entry
+     */
+    private int end() {
+        return count == 0 ? entriesStart : offsets[count - 1] + lengths[count - 1];
+    }
+
+    /**
+     * Replace namespaces in the table with other namespaces
      *
-     * @param replace the namespace to replace, use '.' separators as usual
-     * @param with    the namespace to use instead, use '.' separators as usual
-     * @return the number of namespaces that were updated
+     * @param relocations the namespaces to replace and what to replace them with
+     * @return the number of namespaces and string literals that were updated
      */
-    int replace(String replace, String with) {
+    int replace(NamespaceTrie relocations) {
 
-        // Locate extModClassRef entries that are exact match for namespace
+        // Locate extModClassRef entries that are exact match for a namespace, each is resolved once
+        NamespaceTrie.Node[] resolved = new NamespaceTrie.Node[count];
+        int[] nameIds = new int[count];
         ArrayList<Integer> matched = new ArrayList<>();
-        for (Map.Entry<Integer, ExtModClassRefEntry> entry : extModClassRefEntriesMap.entrySet()) {
-            ExtModClassRefEntry e = entry.getValue();
-            String ref = resolveClassRef(e);
-            if (ref != null && ref.equals(replace)) {
-                matched.add(entry.getKey());
+        ArrayList<Integer> excluded = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            if (types[index] == EntryType.EXT_MOD_CLASS_REF_ID) {
+                NamespaceTrie.Node node = resolveClassRef(index, relocations, resolved, nameIds);
+                if (node.with() != null) {
+                    matched.add(index);
+                } else if (node.preserveParents()) {
+                    excluded.add(index);
+                }
             }
         }
 
-        // Correct the entry
+        // Entries being corrected can't be reused for what they encode now
+        if (!matched.isEmpty() || !excluded.isEmpty()) {
+            indexClassRefs(matched, excluded);
+            indexNames(relocations);
+        }
+
+        // Correct the entries
         for (int index : matched) {
-            updateClassRef(extModClassRefEntriesMap.get(index), with.split("\\."));
+            updateClassRef(index, resolved[index].with());
+        }
+
+        // Excluded entries inside a relocated namespace are pointed at a copy of their original parents
+        Map<Integer, Integer> preserved = new HashMap<>();
+        for (int index : excluded) {
+            Nat.Reader reader = reader(index);
+            int nameRef = reader.readNat();
+            int symbolRef = reader.readNat();
+            int preservedRef = preserveClassRef(symbolRef, resolved, preserved);
+            classRefForUpdate(index).update(nameRef, preservedRef);
+            classRefs.putIfAbsent(classRefKey(nameRef, preservedRef), index);
         }
 
         // Locate ConstantType entries holding string literals and relocate the
         // corresponding TermNameEntry if applicable
-        List<Integer> entriesToRelocate = new ArrayList<>();
-        for (Map.Entry<Integer, ConstantTypeEntry> entry : constantTypeEntryMap.entrySet()) {
-            ConstantTypeEntry e = entry.getValue();
-            TableEntry unknownEntry = entries.get(e.constant_Ref());
-            findOutWhatItIs(unknownEntry, entriesToRelocate, replace);
+        List<Integer> literals = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            if (types[index] == EntryType.CONSTANT_TYPE_ID) {
+                findOutWhatItIs(index, literals);
+            }
+        }
+        int relocatedLiterals = 0;
+        for (int index : literals) {
+            byte[] relocated = relocations.relocate(buffer, offsets[index], lengths[index]);
+            if (relocated != null && !replaced.containsKey(index)) {
+                replaced.put(index, new TermNameEntry(relocated));
+                relocatedLiterals++;
+            }
+        }
+
+        return matched.size() + excluded.size() + relocatedLiterals;
+    }
+
+    /**
+     * Get an ExtModClassRef that encodes the original namespace of an entry, copying the entry and its parents if
+     * their namespace has been relocated.
+     *
+     * @param index     the original entry
+     * @param resolved  trie nodes of original entries
+     * @param preserved copies made so far, by original entry index
+     * @return index of an entry encoding the original namespace
+     */
+    private int preserveClassRef(int index, NamespaceTrie.Node[] resolved, Map<Integer, Integer> preserved) {
+        NamespaceTrie.Node node = resolved[index];
+        if (node.with() == null && !node.relocatedAbove())
+            return index;
+        Integer copy = preserved.get(index);
+        if (copy == null) {
+            Nat.Reader reader = reader(index);
+            int nameRef = reader.readNat();
+            int symbolRef = reader.hasRemaining() ? preserveClassRef(reader.readNat(), resolved, preserved) : -1;
+            copy = classRef(nameRef, symbolRef);
+            preserved.put(index, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Marks class refs that can not match, or are being resolved when found in resolveClassRef
+     */
+    private static final NamespaceTrie.Node NO_MATCH = new NamespaceTrie.Node(-1);
+    private static final NamespaceTrie.Node IN_PROGRESS = new NamespaceTrie.Node(-1);
+
+    /**
+     * Find the trie node for an original ExtModClassRef entry by resolving its parent first. Results are recorded
+     * by entry index so each entry is resolved once however many children it has.
+     *
+     * @param index       the entry
+     * @param relocations the relocation trie
+     * @param resolved    results so far, by entry index
+     * @param nameIds     trie name ids of TermName entries, see {@link #nameId(int, NamespaceTrie, int[])}
+     * @return the node for the namespace the entry encodes, or NO_MATCH if no relocation could apply to it
+     */
+    private NamespaceTrie.Node resolveClassRef(int index, NamespaceTrie relocations, NamespaceTrie.Node[] resolved,
+                                               int[] nameIds) {
+        NamespaceTrie.Node node = resolved[index];
+        if (node != null)
+            return node == IN_PROGRESS ? NO_MATCH : node;
+        resolved[index] = IN_PROGRESS;
+
+        node = NO_MATCH;
+        Nat.Reader reader = reader(index);
+        int nameRef = reader.readNat();
+        if (isType(nameRef, EntryType.TERM_NAME_ID)) {
+            NamespaceTrie.Node parent = relocations.root();
+            if (reader.hasRemaining()) {
+                int symbolRef = reader.readNat();
+                parent = isType(symbolRef, EntryType.EXT_MOD_CLASS_REF_ID) ?
+                        resolveClassRef(symbolRef, relocations, resolved, nameIds) : NO_MATCH;
+            }
+            if (parent != NO_MATCH) {
+                int nameId = nameId(nameRef, relocations, nameIds);
+                NamespaceTrie.Node child = nameId != -1 ? parent.child(nameId) : null;
+                if (child != null)
+                    node = child;
+            }
         }
-        entriesToRelocate.forEach(index -> {
-            TermNameEntry termNameEntry = (TermNameEntry) entries.get(index);
-            String replacedString = new String(termNameEntry.payload(), StandardCharsets.UTF_8).replace(replace, with);
-            termNameEntry.name(replacedString);
-            System.out.println(termNameEntry.name());
-        });
+        resolved[index] = node;
+        return node;
+    }
 
-        return matched.size();
+    /**
+     * Update a ExtModClassRef to encode a different namespace, the existing entry is re-used but its parent
+     * components are not altered, they are pointed at entries that encode the new parent namespace. This avoids
+     * disrupting other entries which may depend on the parent ExtModClassRef/TermName entries of the existing entry
+     * for purposes we don't understand. Existing TermName and ExtModClassRef entries are used where the table already
+     * has them, new entries are only added for names and parents that it does not.
+     *
+     * @param index the entry to update
+     * @param with  the namespace to use instead
+     */
+    private void updateClassRef(int index, NamespaceTrie.Target with) {
+        int termRef = nameRef(with);
+        int symbolRef = with.parent() != null ? targetRef(with.parent()) : -1;
+        classRefForUpdate(index).update(termRef, symbolRef);
+        classRefs.putIfAbsent(classRefKey(termRef, symbolRef), index);
     }
 
     /**
-     * Construct full namespace for an ExtModClassRef entry
+     * Find or create an ExtModClassRef that encodes a target namespace, the result is recorded against the target so
+     * each parent chain is only looked up once
      *
-     * @param ref the entry
-     * @return the namespace it encodes
+     * @param target the namespace
+     * @return index of the entry in table
      */
-    private String resolveClassRef(ExtModClassRefEntry ref) {
-        TermNameEntry e = termNameMap.get(ref.nameRef());
-        if (e == null) return null;
-        String base = "";
-        if (ref.symbolRef() != -1) {
-            ExtModClassRefEntry classRef = extModClassRefEntriesMap.get(ref.symbolRef());
-            if (classRef == null) return null;
-            base = resolveClassRef(classRef)+".";
+    private int targetRef(NamespaceTrie.Target target) {
+        int index = targetRefs[target.id()];
+        if (index == -1) {
+            // Recursively find parent class ref entries to get correct symbolRef
+            int symbolRef = target.parent() != null ? targetRef(target.parent()) : -1;
+            index = classRef(nameRef(target), symbolRef);
+            targetRefs[target.id()] = index;
         }
-        return base + e.name();
+        return index;
     }
 
     /**
-     * Update a ExtModClassRef to encode a different namespace, the existing entry is re-used but any parent
-     * components of the namespace result in new ExtModClassRef being added to the table to avoid disrupting
-     * other entries which may depend on the parent ExtModClassRef/TermName entries of the existing entry for
-     * purposes we don't understand.
+     * Find or create an ExtModClassRef for a name & parent
      *
-     * @param ref  the entry to update
-     * @param with array of namespace components to use instead
+     * @param nameRef   the index of a termName entry for the name
+     * @param symbolRef the index of a "parent" ExtModClassRef, or -1 for none
+     * @return index of the entry in table
+     */
+    private int classRef(int nameRef, int symbolRef) {
+        long key = classRefKey(nameRef, symbolRef);
+        Integer index = classRefs.get(key);
+        if (index == null) {
+            index = add(new ExtModClassRefEntry(nameRef, symbolRef));
+            classRefs.put(key, index);
+        }
+        return index;
+    }
+
+    private static long classRefKey(int nameRef, int symbolRef) {
+        return ((long) nameRef << 32) | (symbolRef & 0xffffffffL);
+    }
+
+    /**
+     * Index the original ExtModClassRef entries by name & parent, other than those about to be updated
      */
-    private void updateClassRef(ExtModClassRefEntry ref, String[] with) {
-        entries.add(new TermNameEntry(with[with.length - 1]));
-        int termRef = entries.size()-1;
-        int symbolRef = -1;
-        if (with.length>1)
-            symbolRef = addClassRef(Arrays.copyOf(with, with.length - 1));
-        ref.update(termRef, symbolRef);
+    private void indexClassRefs(List<Integer> matched, List<Integer> excluded) {
+        classRefs = new HashMap<>();
+        boolean[] updating = new boolean[count];
+        for (int index : matched)
+            updating[index] = true;
+        for (int index : excluded)
+            updating[index] = true;
+        for (int index = 0; index < count; index++) {
+            if (types[index] == EntryType.EXT_MOD_CLASS_REF_ID && !updating[index] && !replaced.containsKey(index)) {
+                Nat.Reader reader = reader(index);
+                int nameRef = reader.readNat();
+                int symbolRef = reader.hasRemaining() ? reader.readNat() : -1;
+                classRefs.putIfAbsent(classRefKey(nameRef, symbolRef), index);
+            }
+        }
     }
 
     /**
-     * Create a new ExtModClassRef that encodes the passed namespace components
+     * Index the original TermName entries that hold target component names, and reset the record of target entries
+     */
+    private void indexNames(NamespaceTrie relocations) {
+        nameRefs = new int[relocations.nameCount()];
+        Arrays.fill(nameRefs, -1);
+        targetRefs = new int[relocations.targetCount()];
+        Arrays.fill(targetRefs, -1);
+        for (int index = 0; index < count; index++) {
+            if (types[index] == EntryType.TERM_NAME_ID && !replaced.containsKey(index)) {
+                int id = relocations.nameId(buffer, offsets[index], lengths[index]);
+                if (id != -1 && nameRefs[id] == -1)
+                    nameRefs[id] = index;
+            }
+        }
+    }
+
+    /**
+     * Find or create a TermName entry for the last component of a target namespace
      *
-     * @param with namespace components
+     * @param target the namespace
+     * @return index of the entry in table
+     */
+    private int nameRef(NamespaceTrie.Target target) {
+        int index = nameRefs[target.nameId()];
+        if (index == -1) {
+            index = add(new TermNameEntry(target.name()));
+            nameRefs[target.nameId()] = index;
+        }
+        return index;
+    }
+
+    /**
+     * Append an entry to the table
+     *
+     * @param entry the new entry
      * @return index of new entry in table
      */
-    private int addClassRef(String[] with) {
-        // Recursively add parent class ref entries to get correct symbolRef
-        int symbolRef = -1;
-        if (with.length > 1) {
-            symbolRef = addClassRef(Arrays.copyOf(with, with.length - 1));
+    private int add(TableEntry entry) {
+        added.add(entry);
+        return entryCount() - 1;
+    }
+
+    /**
+     * Payload layouts, the number of leading refs then the number of Nats that are not refs, all remaining
+     * Nats are refs. Entries without refs are treated as data.
+     */
+    private static final int[] NO_REFS = {0, -1};
+    private static final int[] ONLY_REFS = {0, 0};
+    private static final int[] SYMBOL_REFS = {2, 1};
+    private static final int[] TREE_REFS = {0, 1};
+    private static final int[] TWO_NATS_THEN_REFS = {0, 2};
+
+    /**
+     * Get the payload layout of an entry type, from scala.reflect.internal.pickling.PickleFormat
+     *
+     * @param type the entry type
+     * @return the layout, or null if the type is not known
+     */
+    private static int[] layout(int type) {
+        switch (type) {
+            case 1: // TERMname
+            case 2: // TYPEname
+            case 3: // NONEsym
+            case 11: // NOtpe
+            case 12: // NOPREFIXtpe
+            case EntryType.LITERALunit:
+            case EntryType.LITERALboolean:
+            case EntryType.LITERALbyte:
+            case EntryType.LITERALshort:
+            case EntryType.LITERALchar:
+            case EntryType.LITERALint:
+            case EntryType.LITERALlong:
+            case EntryType.LITERALfloat:
+            case EntryType.LITERALdouble:
+            case EntryType.LITERALnull:
+                return NO_REFS;
+            case 4: // TYPEsym
+            case 5: // ALIASsym
+            case 6: // CLASSsym
+            case 7: // MODULEsym
+            case 8: // VALsym
+                // name_Ref owner_Ref flags_LongNat [privateWithin_Ref] info_Ref ...
+                return SYMBOL_REFS;
+            case 9: // EXTref
+            case 10: // EXTMODCLASSref
+            case 13: // THIStpe
+            case 14: // SINGLEtpe
+            case 15: // CONSTANTtpe
+            case 16: // TYPEREFtpe
+            case 17: // TYPEBOUNDStpe
+            case 18: // REFINEDtpe
+            case 19: // CLASSINFOtpe
+            case 20: // METHODtpe
+            case 21: // POLYtpe
+            case 22: // IMPLICITMETHODtpe
+            case EntryType.LITERALstring:
+            case EntryType.LITERALclass:
+            case EntryType.LITERALenum:
+            case 40: // SYMANNOT
+            case 41: // CHILDREN
+            case 42: // ANNOTATEDtpe
+            case 43: // ANNOTINFO
+            case 44: // ANNOTARGARRAY
+            case 46: // SUPERtpe
+            case 48: // EXISTENTIALtpe
+            case 52: // SUPERtpe2
+                return ONLY_REFS;
+            case 47: // DEBRUIJNINDEXtpe, level_Nat index_Nat
+            case 50: // MODIFIERS, flags as two Nats then privateWithin_Ref
+                return TWO_NATS_THEN_REFS;
+            case 49: // TREE, tag then refs
+                return TREE_REFS;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Test if an entry type can be dropped when nothing refers to it
+     */
+    private static boolean removable(int type) {
+        return type == EntryType.TERM_NAME_ID || type == 9 || type == EntryType.EXT_MOD_CLASS_REF_ID;
+    }
+
+    /**
+     * Drop TermName, ExtRef and ExtModClassRef entries that nothing refers to, such as the parents of relocated
+     * namespaces, and renumber the refs of the remaining entries. Entries that become unused as others are dropped
+     * are also dropped. If the table holds an entry type whose layout is not known the table is left as it is, as
+     * its refs could not be renumbered.
+     *
+     * @return the number of entries dropped
+     * @throws CtxException if an entry holds a ref to an entry that does not exist
+     */
+    int compact() {
+        // Work from the table as it would be written so replaced and added entries are handled the same
+        ByteArrayOutputStream current = new ByteArrayOutputStream(size());
+        try {
+            write(current);
+        } catch (IOException e) {
+            throw new CtxException("Unexpected error writing signature", e);
+        }
+        byte[] data = current.toByteArray();
+        Nat.Reader reader = new Nat.Reader(data);
+        int total = reader.readNat();
+        int[] entryTypes = new int[total];
+        int[] dataStarts = new int[total];
+        int[] dataEnds = new int[total];
+        int[] leading = new int[total];
+        int[][] refs = new int[total][];
+        int[] refCounts = new int[total];
+        for (int index = 0; index < total; index++) {
+            int type = reader.readByte();
+            int length = reader.readNat();
+            int[] layout = layout(type);
+            if (layout == null)
+                return 0;
+
+            // Collect the refs either side of the data
+            Nat.Reader payload = new Nat.Reader(data, reader.position(), length);
+            int[] entryRefs = new int[length];
+            int refCount = 0;
+            for (int i = 0; i < layout[0]; i++)
+                entryRefs[refCount++] = payload.readNat();
+            dataStarts[index] = payload.position();
+            if (layout == NO_REFS) {
+                payload.skip(payload.remaining());
+            } else {
+                for (int i = 0; i < layout[1]; i++)
+                    payload.readLongNat();
+            }
+            dataEnds[index] = payload.position();
+            while (payload.hasRemaining())
+                entryRefs[refCount++] = payload.readNat();
+
+            for (int i = 0; i < refCount; i++) {
+                if (entryRefs[i] >= total)
+                    throw new CtxException("Invalid entry reference in signature data: " + entryRefs[i]);
+                refCounts[entryRefs[i]]++;
+            }
+            entryTypes[index] = type;
+            leading[index] = layout[0];
+            refs[index] = Arrays.copyOf(entryRefs, refCount);
+            reader.skip(length);
         }
 
-        // Add this one using last string as a term
-        entries.add(new TermNameEntry(with[with.length - 1]));
-        entries.add(new ExtModClassRefEntry(entries.size() - 1, symbolRef));
-        return entries.size() - 1;
+        // Drop unused entries, and then any entries only they used
+        boolean[] dropped = new boolean[total];
+        int[] pending = new int[total];
+        int pendingCount = 0;
+        for (int index = 0; index < total; index++) {
+            if (refCounts[index] == 0 && removable(entryTypes[index]))
+                pending[pendingCount++] = index;
+        }
+        int droppedCount = 0;
+        while (pendingCount > 0) {
+            int index = pending[--pendingCount];
+            dropped[index] = true;
+            droppedCount++;
+            for (int ref : refs[index]) {
+                if (--refCounts[ref] == 0 && removable(entryTypes[ref]) && !dropped[ref])
+                    pending[pendingCount++] = ref;
+            }
+        }
+        if (droppedCount == 0)
+            return 0;
+
+        // Renumber and rebuild the table from the remaining entries
+        int[] renumbered = new int[total];
+        int kept = 0;
+        for (int index = 0; index < total; index++) {
+            renumbered[index] = dropped[index] ? -1 : kept++;
+        }
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(data.length);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int[] newTypes = new int[kept];
+        int[] newOffsets = new int[kept];
+        int[] newLengths = new int[kept];
+        try {
+            for (int index = 0; index < total; index++) {
+                if (dropped[index])
+                    continue;
+                payload.reset();
+                int[] entryRefs = refs[index];
+                for (int i = 0; i < leading[index]; i++)
+                    Nat.write(renumbered[entryRefs[i]], payload);
+                payload.write(data, dataStarts[index], dataEnds[index] - dataStarts[index]);
+                for (int i = leading[index]; i < entryRefs.length; i++)
+                    Nat.write(renumbered[entryRefs[i]], payload);
+
+                int newIndex = renumbered[index];
+                entries.write(entryTypes[index]);
+                Nat.write(payload.size(), entries);
+                newTypes[newIndex] = entryTypes[index];
+                newOffsets[newIndex] = entries.size();
+                newLengths[newIndex] = payload.size();
+                payload.writeTo(entries);
+            }
+        } catch (IOException e) {
+            throw new CtxException("Unexpected error writing signature", e);
+        }
+
+        buffer = entries.toByteArray();
+        entriesStart = 0;
+        types = newTypes;
+        offsets = newOffsets;
+        lengths = newLengths;
+        count = kept;
+        replaced.clear();
+        added.clear();
+        nameRefs = null;
+        targetRefs = null;
+        classRefs = null;
+        return droppedCount;
+    }
+
+    /**
+     * Create an entry object for an entry, for display
+     *
+     * @param index the entry
+     * @return the entry object, a copy of its data if not replaced or added
+     */
+    TableEntry entry(int index) {
+        if (index >= count)
+            return added.get(index - count);
+        TableEntry entry = replaced.get(index);
+        if (entry != null)
+            return entry;
+        byte[] raw = Arrays.copyOfRange(buffer, offsets[index], offsets[index] + lengths[index]);
+        switch (types[index]) {
+            case EntryType.TERM_NAME_ID:
+                return new TermNameEntry(raw);
+            case EntryType.EXT_MOD_CLASS_REF_ID:
+                return new ExtModClassRefEntry(raw);
+            case EntryType.CONSTANT_TYPE_ID:
+                return new ConstantTypeEntry(raw);
+            default:
+                return new RawEntry(types[index], raw);
+        }
     }
 
     private static final String separator = System.getProperty("line.separator");
@@ -222,8 +727,8 @@ public class Table {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (TableEntry entry : entries) {
-            sb.append(entry.toString()).append(separator);
+        for (int i = 0; i < entryCount(); i++) {
+            sb.append(entry(i).toString()).append(separator);
         }
         return sb.toString();
     }
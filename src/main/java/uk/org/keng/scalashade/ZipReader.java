@@ -0,0 +1,450 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for zip/jar files that gives access to the compressed data of entries, so entries that are not changed can
+ * be copied to a {@link ZipWriter} without being inflated & deflated again. The file is memory mapped and the central
+ * directory is read when opened, after that entry data is handed out as independent slices of the mapping so entries
+ * may be read from many threads at once without locking. ZIP64 archives are supported.
+ * <p/>
+ * A zip held in memory, such as a jar nested in another, can be read in the same way.
+ */
+class ZipReader {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int ZIP64_END_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+    static final int ZIP64_EXTRA = 0x0001;
+    static final long ZIP64_MAGIC = 0xffffffffL;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    /**
+     * Default distance between the starts of mapped segments, a mapping is limited to 2GB
+     */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Default overlap between mapped segments, entries up to this size never straddle two segments
+     */
+    static final int SEGMENT_OVERLAP = 1 << 26;
+    /**
+     * An entry from the central directory, fields are as stored in the zip
+     */
+    static final class Entry {
+        final String name;
+        final byte[] rawName;
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final byte[] extra;
+        final byte[] comment;
+        final int internalAttributes;
+        final long externalAttributes;
+        final long localHeaderOffset;
+
+        Entry(byte[] rawName, int versionMadeBy, int versionNeeded, int flags, int method, int dosTime, long crc,
+              long compressedSize, long size, byte[] extra, byte[] comment, int internalAttributes,
+              long externalAttributes, long localHeaderOffset) {
+            this.name = new String(rawName, StandardCharsets.UTF_8);
+            this.rawName = rawName;
+            this.versionMadeBy = versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.extra = extra;
+            this.comment = comment;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private final String _path;
+    private final ByteBuffer[] _segments;
+    private final long _stride;
+    private final long _length;
+    private final List<Entry> _entries;
+    private final byte[] _comment;
+
+    /**
+     * Open a zip and read its central directory
+     *
+     * @param file the zip file
+     * @throws CtxException if the file can not be read or is not a valid zip
+     */
+    ZipReader(File file) {
+        this(file, SEGMENT_SIZE, SEGMENT_OVERLAP);
+    }
+
+    /**
+     * Open a zip mapping it in overlapping segments
+     *
+     * @param file    the zip file
+     * @param stride  distance between the start of segments
+     * @param overlap extra bytes mapped at the end of each segment
+     * @throws CtxException if the file can not be read or is not a valid zip
+     */
+    ZipReader(File file, int stride, int overlap) {
+        this(file.getAbsolutePath(), map(file, stride, overlap), stride);
+    }
+
+    /**
+     * Open a zip held in memory
+     *
+     * @param path name of the zip used in errors
+     * @param data the zip from its position to its limit, this is not changed
+     * @throws CtxException if the data is not a valid zip
+     */
+    ZipReader(String path, ByteBuffer data) {
+        this(path, new ByteBuffer[]{data.slice()}, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Map a file in segments of stride bytes plus the overlap, the last segment ends with the file
+     */
+    private static ByteBuffer[] map(File file, int stride, int overlap) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (length + stride - 1) / stride)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i * stride;
+                long size = Math.min(length - position, (long) stride + overlap);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+            return segments;
+        } catch (IOException e) {
+            throw new CtxException("Could not open jar for reading: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Read the central directory of a zip split over segments starting stride bytes apart
+     */
+    private ZipReader(String path, ByteBuffer[] segments, int stride) {
+        _path = path;
+        _stride = stride;
+        _segments = segments;
+        ByteBuffer last = segments[segments.length - 1];
+        _length = (segments.length - 1) * _stride + last.capacity();
+        if (_length < END_SIZE)
+            throw new CtxException("Could not find end of central directory in: " + _path);
+
+        // The end record is followed by a comment of up to 64K
+        int tail = (int) Math.min(_length, END_SIZE + 0xffff);
+        ByteBuffer end = slice(_length - tail, tail);
+        int at = tail - END_SIZE;
+        while (at >= 0 && end.getInt(at) != END_SIGNATURE)
+            at--;
+        if (at < 0)
+            throw new CtxException("Could not find end of central directory in: " + _path);
+        long count = end.getShort(at + 10) & 0xffff;
+        long directorySize = end.getInt(at + 12) & 0xffffffffL;
+        long directoryOffset = end.getInt(at + 16) & 0xffffffffL;
+        _comment = bytes(end, at + END_SIZE, end.getShort(at + 20) & 0xffff);
+
+        // Values that do not fit are in the ZIP64 end record, found from the locator just before the end record
+        long locator = _length - tail + at - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && slice(locator, ZIP64_LOCATOR_SIZE).getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64End = slice(locator, ZIP64_LOCATOR_SIZE).getLong(8);
+            if (zip64End < 0 || zip64End > locator - ZIP64_END_SIZE)
+                throw new CtxException("Invalid ZIP64 end of central directory in: " + _path);
+            ByteBuffer record = slice(zip64End, ZIP64_END_SIZE);
+            if (record.getInt(0) != ZIP64_END_SIGNATURE)
+                throw new CtxException("Invalid ZIP64 end of central directory in: " + _path);
+            count = record.getLong(32);
+            directorySize = record.getLong(40);
+            directoryOffset = record.getLong(48);
+        } else if (directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+            throw new CtxException("Missing ZIP64 end of central directory in: " + _path);
+        }
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > _length)
+            throw new CtxException("Invalid central directory in: " + _path);
+        if (directorySize > Integer.MAX_VALUE || count > Integer.MAX_VALUE)
+            throw new CtxException("Central directory too large in: " + _path);
+
+        // Read the central directory entries
+        ByteBuffer directory = slice(directoryOffset, (int) directorySize);
+        List<Entry> entries = new ArrayList<>((int) Math.min(count, directorySize / CENTRAL_HEADER_SIZE));
+        int offset = 0;
+        for (long i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(offset) != CENTRAL_HEADER_SIGNATURE)
+                throw new CtxException("Invalid central directory in: " + _path);
+            int nameLength = directory.getShort(offset + 28) & 0xffff;
+            int extraLength = directory.getShort(offset + 30) & 0xffff;
+            int commentLength = directory.getShort(offset + 32) & 0xffff;
+            int nameStart = offset + CENTRAL_HEADER_SIZE;
+            if ((long) nameStart + nameLength + extraLength + commentLength > directorySize)
+                throw new CtxException("Invalid central directory in: " + _path);
+            byte[] extra = bytes(directory, nameStart + nameLength, extraLength);
+
+            // Sizes & offset that do not fit are in the ZIP64 extra field, in this order
+            long[] values = {
+                    directory.getInt(offset + 24) & 0xffffffffL,
+                    directory.getInt(offset + 20) & 0xffffffffL,
+                    directory.getInt(offset + 42) & 0xffffffffL};
+            if (values[0] == ZIP64_MAGIC || values[1] == ZIP64_MAGIC || values[2] == ZIP64_MAGIC)
+                zip64Values(extra, values);
+
+            entries.add(new Entry(
+                    bytes(directory, nameStart, nameLength),
+                    directory.getShort(offset + 4) & 0xffff,
+                    directory.getShort(offset + 6) & 0xffff,
+                    directory.getShort(offset + 8) & 0xffff,
+                    directory.getShort(offset + 10) & 0xffff,
+                    directory.getInt(offset + 12),
+                    directory.getInt(offset + 16) & 0xffffffffL,
+                    values[1],
+                    values[0],
+                    extra,
+                    bytes(directory, nameStart + nameLength + extraLength, commentLength),
+                    directory.getShort(offset + 36) & 0xffff,
+                    directory.getInt(offset + 38) & 0xffffffffL,
+                    values[2]));
+            offset = nameStart + nameLength + extraLength + commentLength;
+        }
+        _entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Replace values that are ZIP64_MAGIC with the next value from the ZIP64 extra field
+     */
+    private void zip64Values(byte[] extra, long[] values) {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        int at = 0;
+        while (at + 4 <= extra.length) {
+            int id = buffer.getShort(at) & 0xffff;
+            int length = buffer.getShort(at + 2) & 0xffff;
+            if (id == ZIP64_EXTRA) {
+                int field = at + 4;
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] != ZIP64_MAGIC)
+                        continue;
+                    if (field + 8 > at + 4 + length || field + 8 > extra.length)
+                        throw new CtxException("Invalid ZIP64 extra field in: " + _path);
+                    values[i] = buffer.getLong(field);
+                    if (values[i] < 0)
+                        throw new CtxException("Invalid ZIP64 extra field in: " + _path);
+                    field += 8;
+                }
+                return;
+            }
+            at += 4 + length;
+        }
+        throw new CtxException("Missing ZIP64 extra field in: " + _path);
+    }
+
+    /**
+     * Entries in the order of the central directory
+     *
+     * @return the entries
+     */
+    List<Entry> entries() {
+        return _entries;
+    }
+
+    /**
+     * Comment for the zip as a whole
+     *
+     * @return the comment bytes, may be empty
+     */
+    byte[] comment() {
+        return _comment;
+    }
+
+    /**
+     * Slices of the mapped file holding the compressed data of an entry, there is one slice unless the entry runs
+     * past the end of the segment it starts in. Slices are independent so may be used while other threads read other entries.
+     *
+     * @param entry the entry
+     * @return the data as stored in the zip
+     * @throws CtxException if the entry is not valid
+     */
+    ByteBuffer[] readRaw(Entry entry) {
+        if (entry.localHeaderOffset > _length - LOCAL_HEADER_SIZE)
+            throw new CtxException("Invalid local header for " + entry.name + " in: " + _path);
+        ByteBuffer header = slice(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new CtxException("Invalid local header for " + entry.name + " in: " + _path);
+        long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+                (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        if (entry.compressedSize > _length - dataOffset)
+            throw new CtxException("Invalid entry size for " + entry.name + " in: " + _path);
+
+        // Pieces end where the segment they start in ends, so each shares a mapping rather than being copied
+        List<ByteBuffer> raw = new ArrayList<>(1);
+        long remaining = entry.compressedSize;
+        do {
+            int index = (int) (dataOffset / _stride);
+            long segmentEnd = index * _stride + _segments[index].capacity();
+            int length = (int) Math.min(remaining, segmentEnd - dataOffset);
+            raw.add(slice(dataOffset, length).asReadOnlyBuffer());
+            dataOffset += length;
+            remaining -= length;
+        } while (remaining > 0);
+        return raw.toArray(new ByteBuffer[raw.size()]);
+    }
+
+    /**
+     * Read the uncompressed data of an entry
+     *
+     * @param entry the entry
+     * @return the data
+     * @throws CtxException if the data can not be read or is corrupt
+     */
+    byte[] read(Entry entry) {
+        return inflate(entry, readRaw(entry));
+    }
+
+    /**
+     * Uncompress data read by {@link #readRaw(Entry)}
+     *
+     * @param entry the entry
+     * @param raw   the compressed data, this is not changed
+     * @return the uncompressed data
+     * @throws CtxException if the data is corrupt or the compression method is not supported
+     */
+    byte[] inflate(Entry entry, ByteBuffer[] raw) {
+        if (entry.compressedSize > Integer.MAX_VALUE - 8)
+            throw new CtxException("Entry too large " + entry.name + " in: " + _path);
+        byte[] input = new byte[(int) entry.compressedSize];
+        int at = 0;
+        for (ByteBuffer buffer : raw) {
+            int length = buffer.remaining();
+            buffer.duplicate().get(input, at, length);
+            at += length;
+        }
+        byte[] data;
+        if (entry.method == STORED) {
+            data = input;
+        } else if (entry.method == DEFLATED) {
+            if (entry.size > Integer.MAX_VALUE - 8)
+                throw new CtxException("Entry too large " + entry.name + " in: " + _path);
+            data = new byte[(int) entry.size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int length = 0;
+                while (length < data.length) {
+                    int count = inflater.inflate(data, length, data.length - length);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    length += count;
+                }
+                if (length != data.length)
+                    throw new CtxException("Entry has wrong size " + entry.name + " in: " + _path);
+            } catch (DataFormatException e) {
+                throw new CtxException("Entry is corrupt " + entry.name + " in: " + _path, e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new CtxException("Unsupported compression method " + entry.method + " for " + entry.name +
+                    " in: " + _path);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (crc.getValue() != entry.crc)
+            throw new CtxException("Entry has wrong CRC " + entry.name + " in: " + _path);
+        return data;
+    }
+
+    /**
+     * Drop the mapping of the file, it is unmapped once slices handed out are no longer referenced
+     */
+    void close() {
+        Arrays.fill(_segments, null);
+    }
+
+    /**
+     * Little endian buffer over part of the file, this shares the mapping unless the range straddles two segments
+     */
+    private ByteBuffer slice(long position, int length) {
+        if (length == 0)
+            return ByteBuffer.allocate(0);
+        int index = (int) (position / _stride);
+        ByteBuffer segment = _segments[index];
+        long start = position - index * _stride;
+        ByteBuffer slice;
+        if (start + length <= segment.capacity()) {
+            Buffer buffer = segment.duplicate();
+            buffer.position((int) start);
+            buffer.limit((int) start + length);
+            slice = ((ByteBuffer) buffer).slice();
+        } else {
+            // Copy from the segments it spans
+            slice = ByteBuffer.allocate(length);
+            while (slice.hasRemaining()) {
+                long at = position + slice.position();
+                index = (int) (at / _stride);
+                Buffer buffer = _segments[index].duplicate();
+                buffer.position((int) (at - index * _stride));
+                buffer.limit(Math.min(buffer.capacity(), buffer.position() + slice.remaining()));
+                slice.put((ByteBuffer) buffer);
+            }
+            ((Buffer) slice).flip();
+        }
+        return slice.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+}
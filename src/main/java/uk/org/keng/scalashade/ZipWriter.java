@@ -0,0 +1,477 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writer for zip/jar files that can copy the compressed data of entries read by a {@link ZipReader}, only entries
+ * that have been changed need to be compressed again. Sizes & CRCs are always known before an entry is written so
+ * local headers are written complete, without data descriptors. ZIP64 records are used when sizes, offsets or the
+ * number of entries do not fit the original format.
+ * <p/>
+ * New data is compressed by {@link #compress(String, byte[])}, which may be called from any thread so entries can be
+ * compressed on a pool before being added in order. Entries that are already compressed formats, or that deflate
+ * does not make smaller, are stored.
+ */
+class ZipWriter {
+
+    /**
+     * General purpose flag for a data descriptor after the entry data
+     */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+    /**
+     * General purpose flag for UTF-8 names
+     */
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static final int ZIP64_VERSION = 45;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final long MAX_SIZE = 0xffffffffL;
+
+    /**
+     * Data smaller than this is buffered, larger data is written straight to the file
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Names of entries whose data is normally compressed already
+     */
+    private static final String[] COMPRESSED_SUFFIXES = {
+            ".jar", ".zip", ".war", ".ear", ".jmod", ".gz", ".tgz", ".bz2", ".xz", ".zst",
+            ".png", ".jpg", ".jpeg", ".gif", ".webp"};
+
+    /**
+     * Data for an entry ready to be added
+     */
+    static final class Compressed {
+        final int method;
+        final long crc;
+        final long size;
+        final ByteBuffer raw;
+
+        Compressed(int method, long crc, long size, ByteBuffer raw) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.raw = raw;
+        }
+    }
+
+    private final String _path;
+    private final File _file;
+    private final WritableByteChannel _channel;
+    private final ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteArrayOutputStream _directory = new ByteArrayOutputStream();
+    private long _offset;
+    private long _count;
+    private byte[] _comment = new byte[0];
+    private int _level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Create a zip file
+     *
+     * @param file the file, will be created/overwritten as needed
+     * @throws CtxException if the file can not be opened
+     */
+    ZipWriter(File file) {
+        _path = file.getAbsolutePath();
+        _file = file;
+        try {
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new CtxException("Could not open jar for writing: " + _path, e);
+        }
+    }
+
+    /**
+     * Create a zip in memory
+     *
+     * @param path name of the zip used in errors
+     * @param out  stream the zip is written to, closed by {@link #close()}
+     */
+    ZipWriter(String path, OutputStream out) {
+        _path = path;
+        _file = null;
+        _channel = Channels.newChannel(out);
+    }
+
+    /**
+     * Set the comment for the zip as a whole
+     *
+     * @param comment the comment bytes
+     */
+    void setComment(byte[] comment) {
+        _comment = comment;
+    }
+
+    /**
+     * Set the deflate level used for new data, with 0 all entries are stored uncompressed including those that are
+     * copied from another zip
+     *
+     * @param level the level, 0-9 or -1 for the default level
+     * @throws CtxException if the level is not valid
+     */
+    void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new CtxException("Compression level should be between 0 and 9: " + level);
+        _level = level;
+    }
+
+    /**
+     * Test if an entry can be copied from another zip without changing its data
+     *
+     * @param entry the entry
+     * @return true if the entry may be passed to {@link #copy(ZipReader.Entry, ByteBuffer[])}
+     */
+    boolean canCopy(ZipReader.Entry entry) {
+        return _level != Deflater.NO_COMPRESSION || entry.method == ZipReader.STORED;
+    }
+
+    /**
+     * Copy an entry from another zip without changing its data
+     *
+     * @param entry the entry
+     * @param raw   the compressed data of the entry, as read by {@link ZipReader#readRaw(ZipReader.Entry)}
+     * @throws CtxException if the entry can not be written
+     */
+    void copy(ZipReader.Entry entry, ByteBuffer[] raw) {
+        add(entry, entry.rawName, entry.flags, entry.method, entry.crc, entry.size, raw);
+    }
+
+    /**
+     * Compress data for an entry, this may be called from any thread
+     *
+     * @param name the name of the entry
+     * @param data the uncompressed data
+     * @return the data ready to be written
+     */
+    Compressed compress(String name, byte[] data) {
+        return compress(name, data, data.length);
+    }
+
+    /**
+     * Compress data for an entry held at the start of a larger buffer, see {@link #compress(String, byte[])}
+     *
+     * @param name   the name of the entry
+     * @param data   buffer holding the uncompressed data, this is not copied if the data is stored
+     * @param length length of the data
+     * @return the data ready to be written
+     */
+    Compressed compress(String name, byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        if (_level != Deflater.NO_COMPRESSION && !isCompressed(name)) {
+            byte[] deflated = deflate(data, length, _level);
+            if (deflated.length < length)
+                return new Compressed(ZipReader.DEFLATED, crc.getValue(), length, ByteBuffer.wrap(deflated));
+        }
+        return new Compressed(ZipReader.STORED, crc.getValue(), length, ByteBuffer.wrap(data, 0, length));
+    }
+
+    private static boolean isCompressed(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String suffix : COMPRESSED_SUFFIXES) {
+            if (lower.endsWith(suffix))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write an entry with new data. Other attributes, such as the time, are taken from the entry it replaces.
+     *
+     * @param entry the entry being replaced
+     * @param name  the name to write the entry as
+     * @param data  the data from {@link #compress(String, byte[])}
+     * @throws CtxException if the entry can not be written
+     */
+    void write(ZipReader.Entry entry, String name, Compressed data) {
+        // The name is kept as stored unless it changes, only a name encoded here is known to be UTF-8
+        if (name.equals(entry.name)) {
+            add(entry, entry.rawName, entry.flags, data.method, data.crc, data.size, new ByteBuffer[]{data.raw});
+        } else {
+            add(entry, name.getBytes(StandardCharsets.UTF_8), entry.flags | FLAG_UTF8, data.method, data.crc,
+                    data.size, new ByteBuffer[]{data.raw});
+        }
+    }
+
+    /**
+     * Write an entry that is not from another zip
+     *
+     * @param name the name of the entry, directories end with '/'
+     * @param time modification time in milliseconds since the epoch
+     * @param data the data from {@link #compress(String, byte[])}
+     * @throws CtxException if the entry can not be written
+     */
+    void write(String name, long time, Compressed data) {
+        byte[] rawName = name.getBytes(StandardCharsets.UTF_8);
+        ZipReader.Entry entry = new ZipReader.Entry(rawName, 20, 10, FLAG_UTF8, data.method, dosTime(time),
+                data.crc, 0, data.size, new byte[0], new byte[0], 0, 0, 0);
+        add(entry, rawName, FLAG_UTF8, data.method, data.crc, data.size, new ByteBuffer[]{data.raw});
+    }
+
+    /**
+     * Convert a time to the MS-DOS date & time used by zip headers, in local time as other tools do
+     */
+    static int dosTime(long time) {
+        LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (local.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (local.getYear() - 1980) << 25 | local.getMonthValue() << 21 | local.getDayOfMonth() << 16 |
+                local.getHour() << 11 | local.getMinute() << 5 | local.getSecond() >> 1;
+    }
+
+    private static byte[] deflate(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void add(ZipReader.Entry entry, byte[] rawName, int flags, int method, long crc, long size,
+                     ByteBuffer[] raw) {
+        long offset = _offset;
+        long compressedSize = 0;
+        for (ByteBuffer buffer : raw) {
+            compressedSize += buffer.remaining();
+        }
+
+        // Sizes are known up front, any ZIP64 sizes of the original are replaced with our own
+        flags &= ~FLAG_DATA_DESCRIPTOR;
+        byte[] extra = withoutZip64(entry.extra);
+        int version = method == ZipReader.DEFLATED ? Math.max(entry.versionNeeded, 20) : entry.versionNeeded;
+        boolean zip64Sizes = size >= MAX_SIZE || compressedSize >= MAX_SIZE;
+        boolean zip64 = zip64Sizes || offset >= MAX_SIZE;
+
+        // Local header, both sizes are in the ZIP64 extra field if either does not fit
+        byte[] localExtra = zip64Sizes ? zip64Extra(extra, size, compressedSize, -1) : extra;
+        ByteBuffer local = ByteBuffer.allocate(ZipReader.LOCAL_HEADER_SIZE + rawName.length + localExtra.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(ZipReader.LOCAL_HEADER_SIGNATURE);
+        local.putShort((short) (zip64Sizes ? Math.max(version, ZIP64_VERSION) : version));
+        local.putShort((short) flags);
+        local.putShort((short) method);
+        local.putInt(entry.dosTime);
+        local.putInt((int) crc);
+        local.putInt((int) (zip64Sizes ? MAX_SIZE : compressedSize));
+        local.putInt((int) (zip64Sizes ? MAX_SIZE : size));
+        local.putShort((short) rawName.length);
+        local.putShort((short) localExtra.length);
+        local.put(rawName).put(localExtra);
+        ((Buffer) local).flip();
+        try {
+            write(local);
+            for (ByteBuffer buffer : raw) {
+                write(buffer.duplicate());
+            }
+        } catch (IOException e) {
+            throw new CtxException("Could not write entry for " + entry.name + " in: " + _path, e);
+        }
+        _offset += local.limit() + compressedSize;
+        _count++;
+
+        // Central header, only the values that do not fit are in the ZIP64 extra field
+        byte[] centralExtra = zip64 ? zip64Extra(extra, size >= MAX_SIZE ? size : -1,
+                compressedSize >= MAX_SIZE ? compressedSize : -1, offset >= MAX_SIZE ? offset : -1) : extra;
+        ByteBuffer central = ByteBuffer.allocate(ZipReader.CENTRAL_HEADER_SIZE + rawName.length +
+                centralExtra.length + entry.comment.length).order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(ZipReader.CENTRAL_HEADER_SIGNATURE);
+        central.putShort((short) entry.versionMadeBy);
+        central.putShort((short) (zip64 ? Math.max(version, ZIP64_VERSION) : version));
+        central.putShort((short) flags);
+        central.putShort((short) method);
+        central.putInt(entry.dosTime);
+        central.putInt((int) crc);
+        central.putInt((int) Math.min(compressedSize, MAX_SIZE));
+        central.putInt((int) Math.min(size, MAX_SIZE));
+        central.putShort((short) rawName.length);
+        central.putShort((short) centralExtra.length);
+        central.putShort((short) entry.comment.length);
+        central.putShort((short) 0);
+        central.putShort((short) entry.internalAttributes);
+        central.putInt((int) entry.externalAttributes);
+        central.putInt((int) Math.min(offset, MAX_SIZE));
+        central.put(rawName).put(centralExtra).put(entry.comment);
+        _directory.write(central.array(), 0, central.position());
+    }
+
+    /**
+     * Extra data with a ZIP64 extended information field added holding the values that are not negative
+     */
+    private byte[] zip64Extra(byte[] extra, long size, long compressedSize, long offset) {
+        int length = (size >= 0 ? 8 : 0) + (compressedSize >= 0 ? 8 : 0) + (offset >= 0 ? 8 : 0);
+        if (extra.length + 4 + length > 0xffff)
+            throw new CtxException("Extra data too large for ZIP64 in: " + _path);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + extra.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) ZipReader.ZIP64_EXTRA);
+        buffer.putShort((short) length);
+        if (size >= 0)
+            buffer.putLong(size);
+        if (compressedSize >= 0)
+            buffer.putLong(compressedSize);
+        if (offset >= 0)
+            buffer.putLong(offset);
+        buffer.put(extra);
+        return buffer.array();
+    }
+
+    /**
+     * Remove any ZIP64 extended information field from extra data
+     */
+    private static byte[] withoutZip64(byte[] extra) {
+        ByteArrayOutputStream out = null;
+        int at = 0;
+        while (at + 4 <= extra.length) {
+            int id = (extra[at] & 0xff) | (extra[at + 1] & 0xff) << 8;
+            int length = 4 + ((extra[at + 2] & 0xff) | (extra[at + 3] & 0xff) << 8);
+            if (at + length > extra.length)
+                break;
+            if (id == ZipReader.ZIP64_EXTRA && out == null) {
+                out = new ByteArrayOutputStream(extra.length);
+                out.write(extra, 0, at);
+            } else if (id != ZipReader.ZIP64_EXTRA && out != null) {
+                out.write(extra, at, length);
+            }
+            at += length;
+        }
+        if (out == null)
+            return extra;
+        out.write(extra, at, extra.length - at);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write data after what is in the buffer, small data is buffered
+     */
+    private void write(ByteBuffer data) throws IOException {
+        if (data.remaining() <= _buffer.remaining()) {
+            _buffer.put(data);
+            return;
+        }
+        flush();
+        if (data.remaining() < BUFFER_SIZE) {
+            _buffer.put(data);
+        } else {
+            while (data.hasRemaining()) {
+                _channel.write(data);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        ((Buffer) _buffer).flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        ((Buffer) _buffer).clear();
+    }
+
+    /**
+     * Write the central directory and close the file
+     *
+     * @throws CtxException if the zip can not be completed
+     */
+    void close() {
+        try {
+            long directoryOffset = _offset;
+            long directorySize = _directory.size();
+            write(ByteBuffer.wrap(_directory.toByteArray(), 0, _directory.size()));
+
+            // ZIP64 end record & locator when a value does not fit the end record
+            if (_count >= MAX_ENTRIES || directoryOffset >= MAX_SIZE || directorySize >= MAX_SIZE) {
+                long zip64End = directoryOffset + directorySize;
+                ByteBuffer record = ByteBuffer.allocate(ZipReader.ZIP64_END_SIZE + ZipReader.ZIP64_LOCATOR_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                record.putInt(ZipReader.ZIP64_END_SIGNATURE);
+                record.putLong(ZipReader.ZIP64_END_SIZE - 12);
+                record.putShort((short) ZIP64_VERSION);
+                record.putShort((short) ZIP64_VERSION);
+                record.putInt(0);
+                record.putInt(0);
+                record.putLong(_count);
+                record.putLong(_count);
+                record.putLong(directorySize);
+                record.putLong(directoryOffset);
+                record.putInt(ZipReader.ZIP64_LOCATOR_SIGNATURE);
+                record.putInt(0);
+                record.putLong(zip64End);
+                record.putInt(1);
+                ((Buffer) record).flip();
+                write(record);
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(ZipReader.END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(ZipReader.END_SIGNATURE);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) Math.min(_count, MAX_ENTRIES));
+            end.putShort((short) Math.min(_count, MAX_ENTRIES));
+            end.putInt((int) Math.min(directorySize, MAX_SIZE));
+            end.putInt((int) Math.min(directoryOffset, MAX_SIZE));
+            end.putShort((short) _comment.length);
+            ((Buffer) end).flip();
+            write(end);
+            write(ByteBuffer.wrap(_comment));
+            flush();
+            _channel.close();
+        } catch (IOException e) {
+            throw new CtxException("Error closing jar : " + _path, e);
+        }
+    }
+
+    /**
+     * Close without completing the zip after a failure, a zip file is deleted rather than left partly written. This
+     * may be called after {@link #close()} has failed.
+     */
+    void abort() {
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            // Ignore, the zip is being dropped
+        }
+        if (_file != null)
+            //noinspection ResultOfMethodCallIgnored
+            _file.delete();
+    }
+}
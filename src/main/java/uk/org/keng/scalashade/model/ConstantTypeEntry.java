@@ -3,9 +3,8 @@ package uk.org.keng.scalashade.model;
 import uk.org.keng.scalashade.Nat;
 import uk.org.keng.scalashade.Table;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class ConstantTypeEntry implements TableEntry {
 
@@ -14,8 +13,7 @@ public class ConstantTypeEntry implements TableEntry {
     private final int type = Table.EntryType.CONSTANT_TYPE_ID;
 
     public ConstantTypeEntry(byte[] raw) {
-        ByteArrayInputStream in = new ByteArrayInputStream(raw);
-        constant_Ref = Nat.read(in);
+        constant_Ref = new Nat.Reader(raw).readNat();
         this.raw = raw;
     }
 
@@ -24,7 +22,7 @@ public class ConstantTypeEntry implements TableEntry {
     }
 
     @Override
-    public void write(ByteArrayOutputStream bos) throws IOException {
+    public void write(OutputStream bos) throws IOException {
         bos.write(type);
         Nat.write(raw.length, bos);
         bos.write(raw);
@@ -35,6 +33,11 @@ public class ConstantTypeEntry implements TableEntry {
         return raw;
     }
 
+    @Override
+    public int size() {
+        return 1 + Nat.size(raw.length) + raw.length;
+    }
+
     @Override
     public int type() {
         return type;
@@ -3,9 +3,8 @@ package uk.org.keng.scalashade.model;
 import uk.org.keng.scalashade.Nat;
 import uk.org.keng.scalashade.Table;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Container for table class ref entries. These have a nameRef which refers to a termName entry and a symbolRef which
@@ -35,13 +34,13 @@ public class ExtModClassRefEntry implements TableEntry {
      */
     public ExtModClassRefEntry(byte[] raw) {
         this.raw = raw;
-        ByteArrayInputStream in = new ByteArrayInputStream(raw);
-        _nameRef = Nat.read(in);
+        Nat.Reader in = new Nat.Reader(raw);
+        _nameRef = in.readNat();
 
         // Symbol is optional in the encoding
         _symbolRef = -1;
-        if (in.available() > 0) {
-            _symbolRef = Nat.read(in);
+        if (in.hasRemaining()) {
+            _symbolRef = in.readNat();
         }
     }
 
@@ -68,18 +67,25 @@ public class ExtModClassRefEntry implements TableEntry {
      * @param bos stream to write to
      * @throws IOException
      */
-    public void write(ByteArrayOutputStream bos) throws IOException {
+    public void write(OutputStream bos) throws IOException {
         bos.write(type);
+        Nat.write(payloadSize(), bos);
+        Nat.write(_nameRef, bos);
         if (_symbolRef != -1) {
-            Nat.write(Nat.size(_nameRef)+Nat.size(_symbolRef), bos);
-            Nat.write(_nameRef, bos);
             Nat.write(_symbolRef, bos);
-        } else {
-            Nat.write(Nat.size(_nameRef), bos);
-            Nat.write(_nameRef, bos);
         }
     }
 
+    @Override
+    public int size() {
+        int payloadSize = payloadSize();
+        return 1 + Nat.size(payloadSize) + payloadSize;
+    }
+
+    private int payloadSize() {
+        return _symbolRef != -1 ? Nat.size(_nameRef) + Nat.size(_symbolRef) : Nat.size(_nameRef);
+    }
+
     @Override
     public int type() {
         return type;
@@ -2,8 +2,8 @@ package uk.org.keng.scalashade.model;
 
 import uk.org.keng.scalashade.Nat;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Generic container for a table entry, just holds on to raw bytes and does not attempt decoding.
@@ -28,12 +28,17 @@ public class RawEntry implements TableEntry {
      * @throws IOException
      */
     @Override
-    public void write(ByteArrayOutputStream bos) throws IOException {
+    public void write(OutputStream bos) throws IOException {
         bos.write(type);
         Nat.write(raw.length, bos);
         bos.write(raw);
     }
 
+    @Override
+    public int size() {
+        return 1 + Nat.size(raw.length) + raw.length;
+    }
+
     @Override
     public int type() {
         return type;
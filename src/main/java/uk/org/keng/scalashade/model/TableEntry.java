@@ -1,7 +1,7 @@
 package uk.org.keng.scalashade.model;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Interface for all entry objects
@@ -14,7 +14,14 @@ public interface TableEntry {
      * @param out stream to write onto
      * @throws IOException
      */
-    void write(ByteArrayOutputStream out) throws IOException;
+    void write(OutputStream out) throws IOException;
+
+    /**
+     * Number of bytes {@link #write(OutputStream)} will produce, including the type & length header
+     *
+     * @return the size in bytes
+     */
+    int size();
 
     byte[] payload();
 
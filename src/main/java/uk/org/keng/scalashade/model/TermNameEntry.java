@@ -3,8 +3,8 @@ package uk.org.keng.scalashade.model;
 import uk.org.keng.scalashade.Nat;
 import uk.org.keng.scalashade.Table;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -21,24 +21,26 @@ public class TermNameEntry implements TableEntry {
      * @param name the name
      */
     public TermNameEntry(String name) {
-        _name = name;
+        name(name);
     }
 
     /**
-     * Construct from raw bytes
-     * @param raw raw bytes to construct from
+     * Construct from raw bytes, the name is only decoded if asked for
+     * @param raw raw bytes to construct from, these are not copied
      */
     public TermNameEntry(byte[] raw) {
-        _name = new String(raw, StandardCharsets.UTF_8);
         this.raw = raw;
     }
 
     public String name() {
+        if (_name == null)
+            _name = new String(raw, StandardCharsets.UTF_8);
         return _name;
     }
 
     public void name(String name) {
         this._name = name;
+        this.raw = name.getBytes(StandardCharsets.UTF_8);
     }
 
     /**
@@ -47,11 +49,15 @@ public class TermNameEntry implements TableEntry {
      * @throws IOException
      */
     @Override
-    public void write(ByteArrayOutputStream bos) throws IOException {
+    public void write(OutputStream bos) throws IOException {
         bos.write(type);
-        byte[] bytes = _name.getBytes(StandardCharsets.UTF_8);
-        Nat.write(bytes.length, bos);
-        bos.write(bytes);
+        Nat.write(raw.length, bos);
+        bos.write(raw);
+    }
+
+    @Override
+    public int size() {
+        return 1 + Nat.size(raw.length) + raw.length;
     }
 
     @Override
@@ -65,6 +71,6 @@ public class TermNameEntry implements TableEntry {
     }
 
     public String toString() {
-        return "Type=termName name=" + _name;
+        return "Type=termName name=" + name();
     }
 }
@@ -0,0 +1,99 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BatchShadeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create a jar of Scala classes
+     */
+    private File inputJar(File dir, String name, int classes) throws IOException {
+        File jar = new File(dir, name);
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+        for (int i = 0; i < classes; i++) {
+            JarEntry entry = new JarEntry("test/Foo" + i + ".class");
+            entry.setTime(1420070400000L);
+            jos.putNextEntry(entry);
+            jos.write(ScalaSigClassTest.scalaClass("test/Foo" + i, "Lorg/apache/Bar;",
+                    "Lscala/reflect/ScalaSignature;", ScalaSigClassTest.signature()));
+            jos.closeEntry();
+        }
+        jos.close();
+        return jar;
+    }
+
+    private static NamespaceTrie rules() {
+        return new NamespaceTrie("org.apache", "shaded.org.apache");
+    }
+
+    @Test
+    public void BatchMatchesSingleJars() throws IOException {
+        File in = folder.newFolder("in");
+        File out = new File(folder.getRoot(), "out");
+        for (int i = 0; i < 5; i++) {
+            inputJar(in, "lib" + i + ".jar", i + 1);
+        }
+        Files.write(new File(in, "notes.txt").toPath(), "not a jar".getBytes("UTF-8"));
+
+        BatchShade batch = new BatchShade();
+        batch.addDirectory(in, out);
+        batch.setThreads(2);
+        assertEquals(5, batch.jobs().size());
+        assertEquals(0, batch.run(rules(), false));
+
+        for (int i = 0; i < 5; i++) {
+            File single = new File(folder.getRoot(), "single" + i + ".jar");
+            JarShade jarShade = new JarShade(new File(in, "lib" + i + ".jar"));
+            jarShade.writeTo(single, rules(), false);
+            jarShade.close();
+            assertArrayEquals(Files.readAllBytes(single.toPath()),
+                    Files.readAllBytes(new File(out, "lib" + i + ".jar").toPath()));
+        }
+        assertFalse(new File(out, "notes.txt").exists());
+    }
+
+    @Test
+    public void ManifestFailuresAreCounted() throws IOException {
+        File dir = folder.getRoot();
+        File jar = inputJar(dir, "lib.jar", 2);
+        File manifest = folder.newFile("jobs.txt");
+        Files.write(manifest.toPath(), ("# jobs\n\n" +
+                jar.getPath() + "\t" + new File(dir, "out 1.jar").getPath() + "\n" +
+                new File(dir, "missing.jar").getPath() + " " + new File(dir, "out2.jar").getPath() + "\n")
+                .getBytes("UTF-8"));
+
+        BatchShade batch = new BatchShade();
+        batch.readManifest(manifest, null);
+        assertEquals(2, batch.jobs().size());
+        assertEquals(new File(dir, "out 1.jar"), batch.jobs().get(0).output);
+        assertEquals(1, batch.run(rules(), false));
+        ZipReader input = new ZipReader(jar);
+        ZipReader output = new ZipReader(new File(dir, "out 1.jar"));
+        assertEquals(input.entries().size(), output.entries().size());
+        input.close();
+        output.close();
+    }
+
+    @Test(expected = CtxException.class)
+    public void InvalidManifestLine() throws IOException {
+        File manifest = folder.newFile("jobs.txt");
+        Files.write(manifest.toPath(), "a.jar b.jar c.jar\n".getBytes("UTF-8"));
+        new BatchShade().readManifest(manifest, null);
+    }
+}
@@ -2,10 +2,16 @@ package uk.org.keng.scalashade;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 
 public class CodecTest {
@@ -123,4 +129,145 @@ public class CodecTest {
             assertTrue(false);
         }
     }
+
+    /**
+     * Byte at a time encoder the block codec replaced, kept as a reference for comparisons
+     */
+    private static String referenceEncode(byte[] raw) {
+        int rem = raw.length % 7;
+        byte[] encoded = new byte[(raw.length / 7) * 8 + (rem > 0 ? rem + 1 : 0)];
+        for (int at = 0; at < raw.length; at++) {
+            int lowBits = 7 - (at % 7);
+            int startByte = (at / 7) * 8 + (at % 7);
+            byte lowMask = (byte) (0x7f & ~((1 << (7 - lowBits)) - 1));
+            byte low = (byte) ((raw[at] << (7 - lowBits)) & lowMask);
+            encoded[startByte] = (byte) ((encoded[startByte] & ~lowMask) + low);
+            byte highMask = (byte) (0x7f & ~((1 << (8 - lowBits)) - 1));
+            byte high = (byte) (0x7f & ((raw[at] >> lowBits) & ~highMask));
+            encoded[startByte + 1] = (byte) ((encoded[startByte + 1] & highMask) + high);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : encoded) {
+            sb.append((char) ((b + 1) & 0x7F));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Byte at a time decoder the block codec replaced, kept as a reference for comparisons
+     */
+    private static byte[] referenceDecode(String encoded) {
+        byte[] input = new byte[encoded.length()];
+        for (int i = 0; i < encoded.length(); i++) {
+            input[i] = (byte) ((encoded.charAt(i) - 1) & 0x7F);
+        }
+        int rem = input.length % 8;
+        byte[] output = new byte[(input.length / 8) * 7 + (rem > 0 ? rem - 1 : 0)];
+        for (int at = 0; at < output.length; at++) {
+            int lowBits = 7 - (at % 7);
+            int startByte = (at / 7) * 8 + (at % 7);
+            byte low = (byte) (input[startByte] >> (7 - lowBits));
+            byte high = (byte) (input[startByte + 1] << lowBits);
+            output[at] = (byte) (high + low);
+        }
+        return output;
+    }
+
+    @Test
+    public void RandomMatchesReference() {
+        Random random = new Random(42);
+        for (int length = 0; length < 300; length++) {
+            byte[] raw = new byte[length];
+            random.nextBytes(raw);
+            String encoded = Encoding.encode(raw);
+            assertEquals(referenceEncode(raw), encoded);
+            assertArrayEquals(referenceDecode(encoded), Encoding.decode(encoded));
+            assertArrayEquals(raw, Encoding.decode(encoded));
+        }
+    }
+
+    @Test
+    public void RandomRoundtrip() {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            byte[] raw = new byte[random.nextInt(70000)];
+            random.nextBytes(raw);
+            String encoded = Encoding.encode(raw);
+            assertTrue(Encoding.isValidEncoding(encoded));
+            assertArrayEquals(raw, Encoding.decode(encoded));
+        }
+    }
+
+    @Test
+    public void IllegalCharInBlock() {
+        assertTrue(Encoding.decode("\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0080") == null);
+        assertTrue(Encoding.decode("\u0001\u0001\u0001\u0080\u0001\u0001\u0001\u0001") == null);
+    }
+
+    @Test
+    public void ChunkedDecode() {
+        Random random = new Random(11);
+        for (int i = 0; i < 200; i++) {
+            byte[] raw = new byte[random.nextInt(2000)];
+            random.nextBytes(raw);
+            String encoded = Encoding.encode(raw);
+            List<String> chunks = new ArrayList<>();
+            int at = 0;
+            while (at < encoded.length()) {
+                int next = Math.min(encoded.length(), at + random.nextInt(20));
+                chunks.add(encoded.substring(at, next));
+                at = next;
+            }
+            assertArrayEquals(raw, Encoding.decode(chunks));
+        }
+        assertTrue(Encoding.decode(Arrays.asList("\u0001\u0001\u0001", "\u0080\u0001")) == null);
+    }
+
+    @Test
+    public void SplitLimitsModifiedUtf8Size() {
+        char[] encoded = new char[200000];
+        Random random = new Random(3);
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = (char) (random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(127));
+        }
+        List<String> chunks = Encoding.split(encoded);
+        StringBuilder joined = new StringBuilder();
+        for (String chunk : chunks) {
+            int size = 0;
+            for (int i = 0; i < chunk.length(); i++) {
+                size += chunk.charAt(i) == 0 ? 2 : 1;
+            }
+            assertTrue(size < Encoding.MAX_CHUNK_SIZE);
+            joined.append(chunk);
+        }
+        assertEquals(new String(encoded), joined.toString());
+        assertEquals(1, Encoding.split(new char[0]).size());
+        assertEquals(1, Encoding.split(new char[32767]).size());
+        assertEquals(2, Encoding.split(new char[32768]).size());
+        char[] ones = new char[65535];
+        Arrays.fill(ones, (char) 1);
+        assertEquals(1, Encoding.split(Arrays.copyOf(ones, 65534)).size());
+        assertEquals(2, Encoding.split(ones).size());
+    }
+
+    @Test
+    public void EncodedOutputSizeChecked() {
+        EncodedOutput out = new EncodedOutput(9);
+        out.write(new byte[8], 0, 8);
+        out.write(1);
+        try {
+            out.write(1);
+            fail();
+        } catch (CtxException e) {
+            // Expected
+        }
+        try {
+            new EncodedOutput(9).write(new byte[10], 0, 10);
+            fail();
+        } catch (CtxException e) {
+            // Expected
+        }
+        assertArrayEquals(Encoding.encode(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 1}, 0, 9),
+                String.join("", out.toChunks()).toCharArray());
+    }
 }
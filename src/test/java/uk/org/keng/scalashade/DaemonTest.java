@@ -0,0 +1,59 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 60000)
+    public void ClientRunsJobsOnDaemon() throws Exception {
+        File daemonFile = new File(folder.getRoot(), "daemon");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Thread daemon = new Thread(() -> new Daemon(daemonFile, 2).serve(0, new PrintStream(log, true)));
+        daemon.start();
+        while (!daemonFile.exists()) {
+            Thread.sleep(10);
+        }
+
+        File in = folder.newFile("Foo.class");
+        Files.write(in.toPath(), ScalaSigClassTest.scalaClass("test/Foo", "J", "Lscala/reflect/ScalaSignature;",
+                ScalaSigClassTest.signature()));
+        File out = new File(folder.getRoot(), "Shaded.class");
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        assertEquals(0, Daemon.forward(daemonFile, new String[]{"-v", in.getPath(), out.getPath(),
+                "org.apache", "shaded.org.apache"}, new PrintStream(stdout, true), new PrintStream(stderr, true)));
+        assertTrue(stdout.toString("UTF-8").startsWith("Modified:  " + in.getPath()));
+        assertTrue(stdout.toString("UTF-8").contains("Daemon:    1 classes modified in "));
+        assertEquals("", stderr.toString("UTF-8"));
+
+        File local = new File(folder.getRoot(), "Local.class");
+        assertEquals(0, Main.run(new String[]{in.getPath(), local.getName(), "org.apache", "shaded.org.apache"},
+                folder.getRoot(), System.out, System.err, null));
+        assertArrayEquals(Files.readAllBytes(local.toPath()), Files.readAllBytes(out.toPath()));
+
+        assertEquals(1, Daemon.forward(daemonFile, new String[]{"missing.jar", "out.jar", "a", "b"},
+                new PrintStream(stdout, true), new PrintStream(stderr, true)));
+        assertTrue(stderr.toString("UTF-8").contains("does not appear to be"));
+
+        assertEquals(0, Daemon.stop(daemonFile, System.out, System.err));
+        daemon.join();
+        assertFalse(daemonFile.exists());
+        assertTrue(log.toString("UTF-8").contains("Stopped after 2 jobs"));
+    }
+}
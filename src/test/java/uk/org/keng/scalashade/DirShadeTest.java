@@ -0,0 +1,87 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirShadeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create a tree with a resource, a plain class and some Scala classes over a few directories
+     */
+    File inputDir() throws IOException {
+        File dir = folder.newFolder("classes");
+        File test = new File(dir, "test");
+        assertTrue(new File(test, "sub").mkdirs());
+        Files.write(new File(test, "readme.txt").toPath(), "hello".getBytes("UTF-8"));
+        Files.write(new File(test, "Plain.class").toPath(), ScalaSigClassTest.scalaClass(null, null));
+        for (int i = 0; i < 10; i++) {
+            String name = (i % 2 == 0 ? "test/Foo" : "test/sub/Foo") + i;
+            Files.write(new File(dir, name + ".class").toPath(), ScalaSigClassTest.scalaClass(name, "J",
+                    "Lscala/reflect/ScalaSignature;", ScalaSigClassTest.signature()));
+        }
+        return dir;
+    }
+
+    private File shade(File in, String out, int threads) {
+        File output = new File(folder.getRoot(), out);
+        DirShade shade = new DirShade(in);
+        shade.setThreads(threads);
+        shade.writeTo(output, new NamespaceTrie("org.apache", "shaded.org.apache"), false);
+        return output;
+    }
+
+    @Test
+    public void DirectoryToDirectory() throws IOException {
+        File in = inputDir();
+        File out = shade(in, "out", 3);
+
+        File readme = new File(out, "test/readme.txt");
+        assertTrue(Files.isSameFile(new File(in, "test/readme.txt").toPath(), readme.toPath()) ||
+                new String(Files.readAllBytes(readme.toPath()), "UTF-8").equals("hello"));
+        assertArrayEquals(Files.readAllBytes(new File(in, "test/Plain.class").toPath()),
+                Files.readAllBytes(new File(out, "test/Plain.class").toPath()));
+        ScalaSigClass sigClass = new ScalaSigClass(new File(out, "test/sub/Foo3.class").getPath());
+        assertTrue(TableTest.namespaces(sigClass.getSig()).contains("shaded.org.apache.spark"));
+
+        // Running again replaces links rather than writing through them
+        shade(in, "out", 1);
+        sigClass = new ScalaSigClass(new File(in, "test/sub/Foo3.class").getPath());
+        assertFalse(TableTest.namespaces(sigClass.getSig()).contains("shaded.org.apache.spark"));
+    }
+
+    @Test
+    public void DirectoryToJar() throws IOException {
+        File in = inputDir();
+        File serial = shade(in, "serial.jar", 1);
+        File parallel = shade(in, "parallel.jar", 4);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+
+        JarFile jar = new JarFile(serial);
+        assertEquals(14, jar.size());
+        ScalaSigClass sigClass = new ScalaSigClass("test/Foo0.class",
+                jar.getInputStream(jar.getJarEntry("test/Foo0.class")));
+        assertTrue(TableTest.namespaces(sigClass.getSig()).contains("shaded.org.apache.spark"));
+        assertTrue(jar.getJarEntry("test/sub/").isDirectory());
+        jar.close();
+    }
+
+    @Test(expected = CtxException.class)
+    public void OutputInsideInput() throws IOException {
+        File in = inputDir();
+        new DirShade(in).writeTo(new File(in, "out"), new NamespaceTrie("org.apache", "shaded.org.apache"), false);
+    }
+}
@@ -0,0 +1,468 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JarShadeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create a jar with a directory, a resource and some Scala classes
+     */
+    File inputJar() throws IOException {
+        File jar = folder.newFile("in.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+        put(jos, "test/", null);
+        put(jos, "test/readme.txt", "hello".getBytes("UTF-8"));
+        for (int i = 0; i < 20; i++) {
+            put(jos, "test/Foo" + i + ".class", ScalaSigClassTest.scalaClass("test/Foo" + i, "Lorg/apache/Bar;",
+                    "Lscala/reflect/ScalaSignature;", ScalaSigClassTest.signature()));
+        }
+        put(jos, "test/Plain.class", ScalaSigClassTest.scalaClass(null, null));
+        jos.close();
+        return jar;
+    }
+
+    private static void put(JarOutputStream jos, String name, byte[] bytes) throws IOException {
+        JarEntry entry = new JarEntry(name);
+        entry.setTime(1420070400000L);
+        jos.putNextEntry(entry);
+        if (bytes != null)
+            jos.write(bytes);
+        jos.closeEntry();
+    }
+
+    private File shade(File in, String out, int threads, boolean bytecode) throws IOException {
+        return shade(in, out, threads, bytecode, -1);
+    }
+
+    private File shade(File in, String out, int threads, boolean bytecode, int level) throws IOException {
+        return shade(in, out, threads, bytecode, level, null);
+    }
+
+    private File shade(File in, String out, int threads, boolean bytecode, int level, ShadeCache cache)
+            throws IOException {
+        File jar = new File(folder.getRoot(), out);
+        JarShade shade = new JarShade(in);
+        shade.setThreads(threads);
+        shade.setLevel(level);
+        shade.setCache(cache);
+        shade.setRelocateBytecode(bytecode);
+        shade.writeTo(jar, new NamespaceTrie("org.apache", "shaded.org.apache"), false);
+        return jar;
+    }
+
+    @Test
+    public void ParallelMatchesSerial() throws IOException {
+        File in = inputJar();
+        File serial = shade(in, "serial.jar", 1, false);
+        File parallel = shade(in, "parallel.jar", 3, false);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+
+        JarFile jar = new JarFile(serial);
+        assertEquals(23, jar.size());
+        ScalaSigClass sigClass = new ScalaSigClass("test/Foo0.class",
+                jar.getInputStream(jar.getJarEntry("test/Foo0.class")));
+        assertFalse(TableTest.namespaces(sigClass.getSig()).contains("org.apache.spark"));
+        jar.close();
+    }
+
+    @Test
+    public void ParallelBytecodeMatchesSerial() throws IOException {
+        File in = inputJar();
+        File serial = shade(in, "serial.jar", 1, true);
+        File parallel = shade(in, "parallel.jar", 4, true);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+        JarFile jar = new JarFile(parallel);
+        assertNotNull(jar.getJarEntry("test/Foo19.class"));
+        jar.close();
+    }
+
+    @Test
+    public void UnmodifiedEntriesCopiedRaw() throws IOException {
+        File in = inputJar();
+        ZipReader input = new ZipReader(in);
+        ZipReader output = new ZipReader(shade(in, "out.jar", 1, false));
+        assertEquals(input.entries().size(), output.entries().size());
+        for (int i = 0; i < input.entries().size(); i++) {
+            ZipReader.Entry from = input.entries().get(i);
+            ZipReader.Entry to = output.entries().get(i);
+            assertEquals(from.name, to.name);
+            assertEquals(from.dosTime, to.dosTime);
+            if (from.name.startsWith("test/Foo")) {
+                assertFalse(from.crc == to.crc);
+                assertTrue(TableTest.namespaces(new ScalaSigClass(to.name, output.read(to)).getSig())
+                        .contains("shaded.org.apache.spark"));
+            } else {
+                assertEquals(from.method, to.method);
+                assertEquals(from.crc, to.crc);
+                assertEquals(from.size, to.size);
+                assertArrayEquals(bytes(input.readRaw(from)), bytes(output.readRaw(to)));
+            }
+        }
+        input.close();
+        output.close();
+    }
+
+    private static byte[] bytes(ByteBuffer[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : raw) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void SegmentedMapping() throws IOException {
+        File in = inputJar();
+        ZipReader whole = new ZipReader(in);
+        ZipReader segmented = new ZipReader(in, 512, 16);
+        assertEquals(whole.entries().size(), segmented.entries().size());
+        for (int i = 0; i < whole.entries().size(); i++) {
+            assertArrayEquals(bytes(whole.readRaw(whole.entries().get(i))),
+                    bytes(segmented.readRaw(segmented.entries().get(i))));
+            assertArrayEquals(whole.read(whole.entries().get(i)), segmented.read(segmented.entries().get(i)));
+        }
+        whole.close();
+        segmented.close();
+    }
+
+    @Test
+    public void SegmentedEntriesShareMapping() throws IOException {
+        byte[] data = new byte[2000];
+        new Random(1).nextBytes(data);
+        File in = folder.newFile("large.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(in));
+        putStored(jos, "test/small.bin", new byte[100]);
+        putStored(jos, "test/large.bin", data);
+        jos.close();
+
+        ZipReader segmented = new ZipReader(in, 512, 16);
+        ZipReader.Entry large = segmented.entries().get(1);
+        ByteBuffer[] raw = segmented.readRaw(large);
+        assertTrue(raw.length > 1);
+        for (ByteBuffer piece : raw) {
+            assertTrue(piece.isDirect());
+        }
+        assertArrayEquals(data, bytes(raw));
+        assertArrayEquals(data, segmented.read(large));
+        segmented.close();
+    }
+
+    @Test
+    public void ManyEntriesUseZip64() throws IOException {
+        File in = folder.newFile("many.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(in));
+        for (int i = 0; i < 70000; i++) {
+            put(jos, "r" + i, null);
+        }
+        put(jos, "test/Foo.class", ScalaSigClassTest.scalaClass("test/Foo", "J",
+                "Lscala/reflect/ScalaSignature;", ScalaSigClassTest.signature()));
+        jos.close();
+
+        File out = shade(in, "out.jar", 2, false);
+        ZipReader reader = new ZipReader(out);
+        assertEquals(70001, reader.entries().size());
+        assertEquals("test/Foo.class", reader.entries().get(70000).name);
+        reader.close();
+        JarFile jar = new JarFile(out);
+        assertEquals(70001, jar.size());
+        ScalaSigClass sigClass = new ScalaSigClass("test/Foo.class",
+                jar.getInputStream(jar.getJarEntry("test/Foo.class")));
+        assertTrue(TableTest.namespaces(sigClass.getSig()).contains("shaded.org.apache.spark"));
+        jar.close();
+    }
+
+    @Test
+    public void StoredOutput() throws IOException {
+        File in = inputJar();
+        File serial = shade(in, "serial.jar", 1, false, 0);
+        File parallel = shade(in, "parallel.jar", 3, false, 0);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+
+        ZipReader input = new ZipReader(in);
+        ZipReader output = new ZipReader(serial);
+        for (int i = 0; i < input.entries().size(); i++) {
+            ZipReader.Entry to = output.entries().get(i);
+            assertEquals(ZipReader.STORED, to.method);
+            assertEquals(to.size, to.compressedSize);
+            if (!to.name.startsWith("test/Foo"))
+                assertArrayEquals(input.read(input.entries().get(i)), output.read(to));
+        }
+        input.close();
+        output.close();
+    }
+
+    @Test
+    public void CompressedDataStored() throws IOException {
+        ZipWriter writer = new ZipWriter(new File(folder.getRoot(), "out.jar"));
+        byte[] data = new byte[1000];
+        assertEquals(ZipReader.DEFLATED, writer.compress("a.txt", data).method);
+        assertEquals(ZipReader.STORED, writer.compress("lib/a.JAR", data).method);
+        assertEquals(ZipReader.STORED, writer.compress("a.png", data).method);
+        assertEquals(ZipReader.STORED, writer.compress("a.txt", new byte[]{1}).method);
+        writer.setLevel(0);
+        assertEquals(ZipReader.STORED, writer.compress("a.txt", data).method);
+        writer.close();
+    }
+
+    @Test
+    public void NamesKeptAsStored() throws IOException {
+        File jar = new File(folder.getRoot(), "out.jar");
+        ZipWriter writer = new ZipWriter(jar);
+        byte[] cp437 = new byte[]{'a', (byte) 0x82, '.', 't', 'x', 't'};
+        ZipReader.Entry entry = new ZipReader.Entry(cp437, 20, 10, 0, ZipReader.STORED, ZipWriter.dosTime(0), 0, 0,
+                0, new byte[0], new byte[0], 0, 0, 0);
+        writer.write(entry, entry.name, writer.compress(entry.name, new byte[]{1}));
+        writer.write(entry, "b.txt", writer.compress("b.txt", new byte[]{1}));
+        writer.close();
+
+        ZipReader output = new ZipReader(jar);
+        assertArrayEquals(cp437, output.entries().get(0).rawName);
+        assertEquals(0, output.entries().get(0).flags & 0x800);
+        assertEquals("b.txt", output.entries().get(1).name);
+        assertEquals(0x800, output.entries().get(1).flags & 0x800);
+        output.close();
+    }
+
+    @Test
+    public void CachedMatchesUncached() throws IOException {
+        File in = inputJar();
+        File dir = folder.newFolder("cache");
+        for (boolean bytecode : new boolean[]{false, true}) {
+            File uncached = shade(in, "uncached.jar", 1, bytecode);
+            ShadeCache first = new ShadeCache(dir, ShadeCache.DEFAULT_MAX_BYTES);
+            File missed = shade(in, "missed.jar", 2, bytecode, -1, first);
+            assertEquals(0, first.hits());
+            assertEquals(20, first.misses());
+            ShadeCache second = new ShadeCache(dir, ShadeCache.DEFAULT_MAX_BYTES);
+            File hit = shade(in, "hit.jar", 2, bytecode, -1, second);
+            assertEquals(20, second.hits());
+            assertEquals(0, second.misses());
+            assertArrayEquals(Files.readAllBytes(uncached.toPath()), Files.readAllBytes(missed.toPath()));
+            assertArrayEquals(Files.readAllBytes(uncached.toPath()), Files.readAllBytes(hit.toPath()));
+        }
+    }
+
+    @Test
+    public void CorruptClassCopied() throws IOException {
+        byte[] scala = ScalaSigClassTest.scalaClass("test/Foo", "Lorg/apache/Bar;",
+                "Lscala/reflect/ScalaSignature;", ScalaSigClassTest.signature());
+        byte[] truncated = new byte[20];
+        System.arraycopy(scala, 0, truncated, 0, truncated.length);
+        File in = folder.newFile("corrupt.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(in));
+        put(jos, "test/Bad.class", truncated);
+        put(jos, "test/Garbage.class", "hello".getBytes("UTF-8"));
+        put(jos, "test/Foo.class", scala);
+        put(jos, "test/readme.txt", "hello".getBytes("UTF-8"));
+        jos.close();
+
+        for (int threads : new int[]{1, 2}) {
+            File out = new File(folder.getRoot(), "out" + threads + ".jar");
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            JarShade shade = new JarShade(in);
+            shade.setThreads(threads);
+            shade.setOutput(new PrintStream(new ByteArrayOutputStream()), new PrintStream(err));
+            shade.writeTo(out, new NamespaceTrie("org.apache", "shaded.org.apache"), false);
+            shade.close();
+            assertTrue(err.toString("UTF-8").contains("Failed to shade test/Bad.class"));
+            assertTrue(err.toString("UTF-8").contains("Failed to shade test/Garbage.class"));
+
+            ZipReader output = new ZipReader(out);
+            assertEquals(4, output.entries().size());
+            assertArrayEquals(truncated, output.read(output.entries().get(0)));
+            assertArrayEquals("hello".getBytes("UTF-8"), output.read(output.entries().get(1)));
+            assertTrue(shaded(output, "test/Foo.class"));
+            assertArrayEquals("hello".getBytes("UTF-8"), output.read(output.entries().get(3)));
+            output.close();
+        }
+    }
+
+    @Test
+    public void FailedJarRemoved() throws IOException {
+        File in = folder.newFile("bad.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(in));
+        put(jos, "test/readme.txt", "hello".getBytes("UTF-8"));
+        putStored(jos, "test/Foo.class", ScalaSigClassTest.scalaClass("test/Foo", "Lorg/apache/Bar;",
+                "Lscala/reflect/ScalaSignature;", ScalaSigClassTest.signature()));
+        jos.close();
+
+        // Damage the class so its CRC no longer matches
+        byte[] bytes = Files.readAllBytes(in.toPath());
+        int at = 0;
+        while (!(bytes[at] == (byte) 0xca && bytes[at + 1] == (byte) 0xfe && bytes[at + 2] == (byte) 0xba))
+            at++;
+        bytes[at + 20] ^= 1;
+        Files.write(in.toPath(), bytes);
+
+        for (int threads : new int[]{1, 2}) {
+            try {
+                shade(in, "out" + threads + ".jar", threads, false);
+                fail();
+            } catch (CtxException e) {
+                assertFalse(new File(folder.getRoot(), "out" + threads + ".jar").exists());
+            }
+        }
+    }
+
+    /**
+     * Write a jar containing a stored copy of a jar, a compressed jar without Scala classes & a jar nested twice
+     */
+    private File fatJar(File lib) throws IOException {
+        byte[] libBytes = Files.readAllBytes(lib.toPath());
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        JarOutputStream plainJar = new JarOutputStream(plain);
+        put(plainJar, "test/Plain.class", ScalaSigClassTest.scalaClass(null, null));
+        plainJar.close();
+        ByteArrayOutputStream outer = new ByteArrayOutputStream();
+        JarOutputStream outerJar = new JarOutputStream(outer);
+        putStored(outerJar, "lib/inner.jar", libBytes);
+        outerJar.close();
+
+        File jar = folder.newFile("fat.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+        put(jos, "BOOT-INF/", null);
+        putStored(jos, "BOOT-INF/lib/scala.jar", libBytes);
+        put(jos, "BOOT-INF/lib/plain.jar", plain.toByteArray());
+        putStored(jos, "BOOT-INF/lib/outer.jar", outer.toByteArray());
+        jos.close();
+        return jar;
+    }
+
+    private static void putStored(JarOutputStream jos, String name, byte[] bytes) throws IOException {
+        JarEntry entry = new JarEntry(name);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.setMethod(JarEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        entry.setTime(1420070400000L);
+        jos.putNextEntry(entry);
+        jos.write(bytes);
+        jos.closeEntry();
+    }
+
+    private File shadeNested(File in, String out, int threads, int depth, long memory) {
+        File jar = new File(folder.getRoot(), out);
+        JarShade shade = new JarShade(in);
+        shade.setThreads(threads);
+        shade.setNested(depth, memory);
+        shade.writeTo(jar, new NamespaceTrie("org.apache", "shaded.org.apache"), false);
+        shade.close();
+        return jar;
+    }
+
+    private static boolean shaded(ZipReader jar, String name) {
+        for (ZipReader.Entry entry : jar.entries()) {
+            if (entry.name.equals(name))
+                return TableTest.namespaces(new ScalaSigClass(name, jar.read(entry)).getSig())
+                        .contains("shaded.org.apache.spark");
+        }
+        throw new AssertionError("Missing " + name);
+    }
+
+    private static ZipReader nested(ZipReader jar, String name) {
+        for (ZipReader.Entry entry : jar.entries()) {
+            if (entry.name.equals(name))
+                return new ZipReader(name, ByteBuffer.wrap(jar.read(entry)));
+        }
+        throw new AssertionError("Missing " + name);
+    }
+
+    @Test
+    public void NestedJarsShaded() throws IOException {
+        File in = fatJar(inputJar());
+        ZipReader input = new ZipReader(in);
+        File serial = shadeNested(in, "serial.jar", 1, 2, JarShade.DEFAULT_NESTED_MEMORY);
+        File parallel = shadeNested(in, "parallel.jar", 3, 2, JarShade.DEFAULT_NESTED_MEMORY);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+
+        ZipReader output = new ZipReader(serial);
+        for (int i = 0; i < input.entries().size(); i++) {
+            ZipReader.Entry from = input.entries().get(i);
+            ZipReader.Entry to = output.entries().get(i);
+            assertEquals(from.name, to.name);
+            assertEquals(from.method, to.method);
+            if (from.name.endsWith("plain.jar"))
+                assertArrayEquals(bytes(input.readRaw(from)), bytes(output.readRaw(to)));
+            else if (!to.isDirectory())
+                assertFalse(from.crc == to.crc);
+        }
+        assertTrue(shaded(nested(output, "BOOT-INF/lib/scala.jar"), "test/Foo3.class"));
+        assertTrue(shaded(nested(nested(output, "BOOT-INF/lib/outer.jar"), "lib/inner.jar"), "test/Foo3.class"));
+        input.close();
+        output.close();
+    }
+
+    @Test
+    public void NestedJarsLimited() throws IOException {
+        File in = fatJar(inputJar());
+        ZipReader input = new ZipReader(in);
+        long libSize = input.entries().get(1).size;
+
+        // Only one level, then with memory for the output of the outer jar but not the one inside it
+        long outerOnly = libSize + libSize / 8 + (64 << 10) + (16 << 10);
+        ZipReader shallow = new ZipReader(shadeNested(in, "shallow.jar", 1, 1, JarShade.DEFAULT_NESTED_MEMORY));
+        ZipReader small = new ZipReader(shadeNested(in, "small.jar", 2, 2, outerOnly));
+        for (ZipReader output : new ZipReader[]{shallow, small}) {
+            assertTrue(shaded(nested(output, "BOOT-INF/lib/scala.jar"), "test/Foo3.class"));
+            assertEquals(input.entries().get(3).crc, output.entries().get(3).crc);
+            output.close();
+        }
+
+        ZipReader none = new ZipReader(shadeNested(in, "none.jar", 1, 0, JarShade.DEFAULT_NESTED_MEMORY));
+        for (int i = 0; i < input.entries().size(); i++) {
+            assertArrayEquals(bytes(input.readRaw(input.entries().get(i))), bytes(none.readRaw(none.entries().get(i))));
+        }
+        none.close();
+        input.close();
+    }
+
+    @Test
+    public void NestedJarsShareBudget() throws IOException {
+        byte[] lib = Files.readAllBytes(inputJar().toPath());
+        File in = folder.newFile("libs.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(in));
+        for (int i = 0; i < 6; i++) {
+            putStored(jos, "lib/lib" + i + ".jar", lib);
+        }
+        jos.close();
+
+        // Room for one nested jar at a time, the others wait for it to be written rather than being skipped
+        long one = lib.length + lib.length / 8 + (64 << 10) + (16 << 10);
+        File serial = shadeNested(in, "serial.jar", 1, 1, one);
+        File parallel = shadeNested(in, "parallel.jar", 3, 1, one);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+        ZipReader output = new ZipReader(parallel);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(shaded(nested(output, "lib/lib" + i + ".jar"), "test/Foo3.class"));
+        }
+        output.close();
+    }
+}
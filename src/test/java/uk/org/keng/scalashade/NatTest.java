@@ -0,0 +1,103 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class NatTest {
+
+    private static byte[] write(long value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Nat.writeLong(value, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void KnownEncodings() throws IOException {
+        assertArrayEquals(new byte[]{0}, write(0));
+        assertArrayEquals(new byte[]{0x7f}, write(127));
+        assertArrayEquals(new byte[]{(byte) 0x81, 0}, write(128));
+        assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0x80, 0}, write(16384));
+    }
+
+    @Test
+    public void Roundtrip() throws IOException {
+        long[] values = {0, 1, 127, 128, 255, 16383, 16384, Integer.MAX_VALUE, 0xffffffffL, Long.MAX_VALUE, -1L};
+        for (long value : values) {
+            byte[] bytes = write(value);
+            assertEquals(Nat.size(value), bytes.length);
+            Nat.Reader reader = new Nat.Reader(bytes);
+            assertEquals(value, reader.readLongNat());
+            assertFalse(reader.hasRemaining());
+            assertEquals(value, Nat.readLong(ByteBuffer.wrap(bytes)));
+        }
+    }
+
+    @Test
+    public void IntWritesUnsigned() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Nat.write(-1, out);
+        assertArrayEquals(write(0xffffffffL), out.toByteArray());
+        assertEquals(5, Nat.size(-1));
+    }
+
+    @Test
+    public void Bounds() {
+        expectFailure(new byte[]{(byte) 0x81}, 0, 1);
+        expectFailure(new byte[]{(byte) 0x81, 0}, 0, 1);
+        expectFailure(new byte[]{(byte) 0x8f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f}, 0, 5);
+        // 10 bytes with more than 64 bits of value, and a negative LongNat read as a Nat
+        byte[] overflow = new byte[10];
+        Arrays.fill(overflow, (byte) 0xff);
+        overflow[9] = 0x7f;
+        expectFailure(overflow, 0, 10);
+        try {
+            Nat.readLong(ByteBuffer.wrap(overflow));
+            fail();
+        } catch (CtxException e) {
+            // Expected
+        }
+        byte[] negative = new byte[10];
+        Arrays.fill(negative, (byte) 0x80);
+        negative[0] = (byte) 0x81;
+        negative[9] = 0;
+        assertEquals(Long.MIN_VALUE, new Nat.Reader(negative).readLongNat());
+        expectFailure(negative, 0, 10);
+        byte[] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0x80);
+        expectFailure(tooLong, 0, 11);
+        try {
+            new Nat.Reader(new byte[2], 1, 2);
+            fail();
+        } catch (CtxException e) {
+            // Expected
+        }
+    }
+
+    private static void expectFailure(byte[] bytes, int offset, int length) {
+        try {
+            new Nat.Reader(bytes, offset, length).readNat();
+            fail();
+        } catch (CtxException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void Literals() {
+        Nat.Reader reader = new Nat.Reader(new byte[]{(byte) 0xff, 0x01, 0x00, 0x7f, (byte) 0xff});
+        assertEquals(-1, reader.readLong(1));
+        assertEquals(256, reader.readLong(2));
+        assertEquals(0x7fff, reader.readLong(2));
+        assertEquals(0, reader.readLong(0));
+        assertFalse(reader.hasRemaining());
+    }
+}
@@ -0,0 +1,48 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScalaShadeAgentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void TransformCounted() throws IOException {
+        ScalaShadeAgent agent = new ScalaShadeAgent("org.apache=shaded.org.apache, !org.apache.hadoop");
+        byte[] updated = agent.transform(null, "test/Foo", null, null, ScalaSigClassTest.relocatableClass());
+        assertArrayEquals(new ScalaShadeTransformer(new NamespaceTrie("org.apache", "shaded.org.apache"), false, false)
+                .transform(ScalaSigClassTest.relocatableClass()), updated);
+        assertNull(agent.transform(null, "test/Plain", null, null, ScalaSigClassTest.scalaClass(null, null)));
+        assertNull(agent.transform(null, "test/Bad", null, null, new byte[]{1, 2, 3}));
+
+        assertEquals(3, agent.getClassesInspected());
+        assertEquals(1, agent.getClassesRewritten());
+        assertEquals(1, agent.getClassesFailed());
+        assertTrue(agent.getTotalNanos() > 0);
+    }
+
+    @Test
+    public void RulesFileOption() throws IOException {
+        File rules = folder.newFile("shade.rules");
+        Files.write(rules.toPath(), "relocate org.apache shaded.org.apache\n".getBytes("UTF-8"));
+        ScalaShadeAgent agent = new ScalaShadeAgent(rules.getPath() + ",verbose");
+        assertTrue(agent.transform(null, "test/Foo", null, null, ScalaSigClassTest.relocatableClass()) != null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void NoRelocations() {
+        new ScalaShadeAgent("verbose");
+    }
+}
@@ -0,0 +1,63 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScalaShadeTransformerTest {
+
+    private static final Map<String, String> RULES = Collections.singletonMap("org.apache", "shaded.org.apache");
+
+    private static boolean shaded(byte[] classBytes) {
+        return TableTest.namespaces(new ScalaSigClass("test/Foo.class", classBytes).getSig())
+                .contains("shaded.org.apache.spark");
+    }
+
+    @Test
+    public void TransformBytes() throws IOException {
+        ScalaShadeTransformer transformer = new ScalaShadeTransformer(RULES);
+        byte[] original = ScalaSigClassTest.relocatableClass();
+        byte[] updated = transformer.transform(original);
+        assertTrue(shaded(updated));
+        assertFalse(shaded(original));
+        assertNull(transformer.transform(ScalaSigClassTest.scalaClass(null, null)));
+
+        ByteBuffer buffer = ByteBuffer.allocate(original.length + 2);
+        buffer.put((byte) 1).put(original).put((byte) 2).position(1).limit(original.length + 1);
+        ByteBuffer fromBuffer = transformer.transform(buffer);
+        assertEquals(1, buffer.position());
+        byte[] bytes = new byte[fromBuffer.remaining()];
+        fromBuffer.get(bytes);
+        assertArrayEquals(updated, bytes);
+    }
+
+    @Test
+    public void AdapterInPipeline() throws IOException {
+        for (boolean bytecode : new boolean[]{false, true}) {
+            ScalaShadeTransformer transformer = new ScalaShadeTransformer(RULES,
+                    Collections.<String>emptyList(), false, bytecode);
+            ClassWriter writer = new ClassWriter(0);
+            new ClassReader(ScalaSigClassTest.relocatableClass()).accept(transformer.adapter(writer), 0);
+            byte[] adapted = writer.toByteArray();
+            assertTrue(shaded(adapted));
+            assertEquals(bytecode, new ScalaSigClass("test/Foo.class", adapted)
+                    .mayReferenceInBytecode(new NamespaceTrie("shaded", "x")));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void NotAClass() {
+        new ScalaShadeTransformer(RULES).transform(new byte[]{1, 2, 3});
+    }
+}
@@ -0,0 +1,249 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScalaSigClassTest {
+
+    /**
+     * Create a class with a field and, if desc is not null, a signature annotation of that descriptor
+     */
+    static byte[] scalaClass(String desc, byte[] signature) {
+        return scalaClass("test/Foo", "J", desc, signature);
+    }
+
+    static byte[] scalaClass(String name, String fieldDesc, String desc, byte[] signature) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        if (desc != null) {
+            AnnotationVisitor av = cw.visitAnnotation(desc, true);
+            List<String> chunks = Encoding.split(Encoding.encode(signature, 0, signature.length));
+            if (chunks.size() == 1) {
+                av.visit("bytes", chunks.get(0));
+            } else {
+                AnnotationVisitor array = av.visitArray("bytes");
+                for (String chunk : chunks)
+                    array.visit(null, chunk);
+                array.visitEnd();
+            }
+            av.visitEnd();
+        }
+        cw.visitField(Opcodes.ACC_PUBLIC, "value", fieldDesc, null, fieldDesc.equals("J") ? 42L : null).visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    static byte[] signature() throws IOException {
+        TableTest.SigBuilder b = new TableTest.SigBuilder();
+        b.namespace("org.apache.spark");
+        return b.build();
+    }
+
+    /**
+     * Create a class with a field of an org.apache type and a signature referring to org.apache.spark
+     */
+    static byte[] relocatableClass() throws IOException {
+        return scalaClass("test/Foo", "Lorg/apache/Bar;", "Lscala/reflect/ScalaSignature;", signature());
+    }
+
+    @Test
+    public void PlainClassSkipped() {
+        byte[] bytes = scalaClass(null, null);
+        assertFalse(new ClassFile(bytes).mayHaveScalaSignature());
+        ScalaSigClass sigClass = new ScalaSigClass("Foo.class", bytes);
+        assertNull(sigClass.getSig());
+        assertTrue(bytes == sigClass.getBytes());
+    }
+
+    @Test
+    public void ShadedAnnotationPackage() throws IOException {
+        byte[] bytes = scalaClass("Lshaded/scala/reflect/ScalaSignature;", signature());
+        assertTrue(new ClassFile(bytes).mayHaveScalaSignature());
+        ScalaSigClass sigClass = new ScalaSigClass("Foo.class", bytes);
+        assertEquals(1, sigClass.getSig().replace("org.apache", "shaded.org.apache"));
+
+        ClassNode clazz = new ClassNode();
+        new ClassReader(sigClass.getBytes()).accept(clazz, 0);
+        AnnotationNode an = clazz.visibleAnnotations.get(0);
+        assertEquals("Lshaded/scala/reflect/ScalaSignature;", an.desc);
+        assertTrue(TableTest.namespaces(ScalaSig.parse(Encoding.decode((String) an.values.get(1))))
+                .contains("shaded.org.apache.spark"));
+    }
+
+    @Test
+    public void ChunkCountChanges() throws IOException {
+        TableTest.SigBuilder b = new TableTest.SigBuilder();
+        b.namespace("org.apache.spark");
+        b.entry(40, new byte[70000]);
+        byte[] longSig = b.build();
+        ScalaSigClass shortClass = new ScalaSigClass("Foo.class", scalaClass("Lscala/reflect/ScalaSignature;", signature()));
+        ScalaSigClass longClass = new ScalaSigClass("Foo.class", scalaClass("Lscala/reflect/ScalaLongSignature;", longSig));
+
+        // Same number of chunks, only the constants change
+        assertEquals(1, longClass.getSig().replace("org.apache", "shaded.org.apache"));
+        ClassNode clazz = read(longClass.getBytes());
+        assertEquals("Lscala/reflect/ScalaLongSignature;", clazz.visibleAnnotations.get(0).desc);
+        assertEquals(42L, clazz.fields.get(0).value);
+
+        // Grow to a ScalaLongSignature
+        clazz = read(swapSignature(shortClass, longClass));
+        assertEquals("Lscala/reflect/ScalaLongSignature;", clazz.visibleAnnotations.get(0).desc);
+        assertTrue(((List<?>) clazz.visibleAnnotations.get(0).values.get(1)).size() > 1);
+        assertEquals(42L, clazz.fields.get(0).value);
+
+        // Shrink to a ScalaSignature
+        shortClass.getSig();
+        clazz = read(swapSignature(longClass, shortClass));
+        assertEquals("Lscala/reflect/ScalaSignature;", clazz.visibleAnnotations.get(0).desc);
+        assertArrayEquals(signature(), Encoding.decode((String) clazz.visibleAnnotations.get(0).values.get(1)));
+        assertEquals(42L, clazz.fields.get(0).value);
+    }
+
+    @Test
+    public void SharedChunkConstants() {
+        // Equal chunks share a constant, which the field's constant value refers to as well
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Foo", null, "java/lang/Object", null);
+        AnnotationVisitor av = cw.visitAnnotation("Lscala/reflect/ScalaLongSignature;", true);
+        AnnotationVisitor array = av.visitArray("bytes");
+        array.visit(null, "shared");
+        array.visit(null, "shared");
+        array.visitEnd();
+        av.visitEnd();
+        cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "value", "Ljava/lang/String;",
+                null, "shared").visitEnd();
+        cw.visitEnd();
+        ClassFile classFile = new ClassFile(cw.toByteArray());
+        assertTrue(classFile.findScalaSignature());
+
+        ClassNode clazz = read(classFile.withSignature(Arrays.asList("first", "second")));
+        assertEquals(Arrays.asList("first", "second"), clazz.visibleAnnotations.get(0).values.get(1));
+        assertEquals("shared", clazz.fields.get(0).value);
+
+        clazz = read(classFile.withSignature(Collections.singletonList("only")));
+        assertEquals("Lscala/reflect/ScalaSignature;", clazz.visibleAnnotations.get(0).desc);
+        assertEquals("only", clazz.visibleAnnotations.get(0).values.get(1));
+        assertEquals("shared", clazz.fields.get(0).value);
+    }
+
+    @Test
+    public void InlineInfoSharesChunkConstant() {
+        // The SAM named by ScalaInlineInfo shares the chunk's constant, so the chunk is added rather than patched
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Foo", null, "java/lang/Object", null);
+        AnnotationVisitor av = cw.visitAnnotation("Lscala/reflect/ScalaSignature;", true);
+        av.visit("bytes", "shared");
+        av.visitEnd();
+        cw.visitAttribute(new InlineInfo("shared"));
+        cw.visitEnd();
+        ClassFile classFile = new ClassFile(cw.toByteArray());
+        assertTrue(classFile.findScalaSignature());
+
+        ClassNode clazz = new ClassNode();
+        new ClassReader(classFile.withSignature(Collections.singletonList("only")))
+                .accept(clazz, new Attribute[]{new InlineInfo(null)}, 0);
+        assertEquals("only", clazz.visibleAnnotations.get(0).values.get(1));
+        assertEquals("shared", ((InlineInfo) clazz.attrs.get(0)).sam);
+    }
+
+    /**
+     * ScalaInlineInfo version 1 with a SAM and no methods
+     */
+    private static final class InlineInfo extends Attribute {
+        final String sam;
+
+        InlineInfo(String sam) {
+            super("ScalaInlineInfo");
+            this.sam = sam;
+        }
+
+        @Override
+        protected Attribute read(ClassReader cr, int offset, int length, char[] buffer, int codeOffset,
+                                 Label[] labels) {
+            return new InlineInfo(cr.readUTF8(offset + 2, buffer));
+        }
+
+        @Override
+        protected ByteVector write(ClassWriter cw, byte[] code, int length, int maxStack, int maxLocals) {
+            return new ByteVector().putByte(1).putByte(4).putShort(cw.newUTF8(sam)).putShort(cw.newUTF8("()V"))
+                    .putShort(0);
+        }
+    }
+
+    private static ClassNode read(byte[] bytes) {
+        ClassNode clazz = new ClassNode();
+        new ClassReader(bytes).accept(clazz, 0);
+        return clazz;
+    }
+
+    /**
+     * Store the signature of one class in another
+     */
+    private static byte[] swapSignature(ScalaSigClass to, ScalaSigClass from) {
+        ClassFile classFile = new ClassFile(to.getOriginalBytes());
+        classFile.findScalaSignature();
+        return classFile.withSignature(from.getSig().encode());
+    }
+
+    @Test
+    public void RelocateBytecode() throws IOException {
+        NamespaceTrie relocations = new NamespaceTrie("org.apache", "shaded.org.apache");
+        RulesRemapper remapper = new RulesRemapper(relocations);
+        ScalaSigClass sigClass = new ScalaSigClass("org/apache/Foo.class",
+                scalaClass("org/apache/Foo", "Lorg/apache/Bar;", "Lscala/reflect/ScalaSignature;", signature()));
+        assertTrue(sigClass.mayReferenceInBytecode(relocations));
+        assertFalse(sigClass.mayReferenceInBytecode(new NamespaceTrie("com.google", "shaded.com.google")));
+        assertEquals(1, sigClass.getSig().replace(relocations));
+
+        ClassNode clazz = read(sigClass.getBytes(remapper));
+        assertEquals("shaded/org/apache/Foo", clazz.name);
+        assertEquals("Lshaded/org/apache/Bar;", clazz.fields.get(0).desc);
+        AnnotationNode an = clazz.visibleAnnotations.get(0);
+        assertEquals("Lscala/reflect/ScalaSignature;", an.desc);
+        assertTrue(TableTest.namespaces(ScalaSig.parse(Encoding.decode((String) an.values.get(1))))
+                .contains("shaded.org.apache.spark"));
+        assertEquals("shaded/org/apache/Foo.class", remapper.mapEntryName("org/apache/Foo.class"));
+        assertEquals("org/apache/foo.txt", remapper.mapEntryName("org/apache/foo.txt"));
+    }
+
+    @Test
+    public void BytecodeNotRelocated() {
+        byte[] bytes = scalaClass("test/Foo", "Lorg/apache/Bar;", null, null);
+        ScalaSigClass sigClass = new ScalaSigClass("test/Foo.class", bytes);
+        assertFalse(sigClass.mayReferenceInBytecode(new NamespaceTrie("org.nothere", "shaded.org.nothere")));
+        assertFalse(sigClass.mayReferenceInBytecode(new NamespaceTrie("org.apach", "shaded.org.apach")));
+
+        // Passes the constant pool scan but nothing is relocated
+        NamespaceTrie relocations = new NamespaceTrie("org.apache", "shaded.org.apache");
+        relocations.exclude("org.apache.Bar");
+        assertTrue(sigClass.mayReferenceInBytecode(relocations));
+        assertNull(sigClass.getBytes(new RulesRemapper(relocations)));
+        ClassShader.Outcome outcome = new ClassShader(relocations, false, true, null).shade("test/Foo.class", bytes);
+        assertNull(outcome.bytes);
+        assertFalse(outcome.modified());
+    }
+
+    @Test(expected = CtxException.class)
+    public void NotAClass() {
+        new ScalaSigClass("Foo.class", new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+    }
+}
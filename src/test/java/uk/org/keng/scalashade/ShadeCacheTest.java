@@ -0,0 +1,70 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShadeCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void RulesAffectKey() {
+        NamespaceTrie one = new NamespaceTrie("org.apache", "shaded.org.apache");
+        one.add("com.google", "shaded.com.google");
+        NamespaceTrie two = new NamespaceTrie("com.google", "shaded.com.google");
+        two.add("org.apache", "shaded.org.apache");
+        byte[] rules = ShadeCache.rulesHash(one, false, false);
+        assertArrayEquals(rules, ShadeCache.rulesHash(two, false, false));
+        assertFalse(ShadeCache.key(rules, new byte[]{1}).equals(ShadeCache.key(rules, new byte[]{2})));
+
+        two.exclude("org.apache.spark");
+        assertFalse(ShadeCache.key(rules, new byte[]{1})
+                .equals(ShadeCache.key(ShadeCache.rulesHash(two, false, false), new byte[]{1})));
+        assertFalse(ShadeCache.key(rules, new byte[]{1})
+                .equals(ShadeCache.key(ShadeCache.rulesHash(one, true, false), new byte[]{1})));
+    }
+
+    @Test
+    public void StoreLookupAndTrim() throws IOException {
+        File dir = folder.newFolder("cache");
+        ShadeCache cache = new ShadeCache(dir, 2500);
+        byte[] rules = ShadeCache.rulesHash(new NamespaceTrie("a", "b"), false, false);
+        String[] keys = new String[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ShadeCache.key(rules, new byte[]{(byte) i});
+            assertNull(cache.lookup(keys[i]));
+            cache.store(keys[i], new byte[1000]);
+        }
+        String unchanged = ShadeCache.key(rules, new byte[]{9});
+        cache.store(unchanged, null);
+        assertTrue(ShadeCache.UNCHANGED == cache.lookup(unchanged));
+        assertEquals(1000, cache.lookup(keys[3]).length);
+
+        // Make the first keys the least recently used
+        for (int i = 0; i < keys.length; i++) {
+            Path path = dir.toPath().resolve(keys[i].substring(0, 2)).resolve(keys[i].substring(2));
+            Files.setLastModifiedTime(path, FileTime.fromMillis(1000000L * (i + 1)));
+        }
+        assertEquals(2, cache.trim());
+        assertNull(cache.lookup(keys[0]));
+        assertNull(cache.lookup(keys[1]));
+        assertNotNull(cache.lookup(keys[2]));
+        assertNotNull(cache.lookup(keys[3]));
+        assertTrue(ShadeCache.UNCHANGED == cache.lookup(unchanged));
+    }
+}
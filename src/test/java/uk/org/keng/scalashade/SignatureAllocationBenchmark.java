@@ -0,0 +1,110 @@
+package uk.org.keng.scalashade;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports bytes allocated per class for a signature round trip (decode, parse, write, encode), comparing the staged
+ * pipeline via intermediate byte arrays with the fused pipeline used by ScalaSigClass. Not run as part of the tests,
+ * after 'mvn test-compile' run with:
+ * <p/>
+ * java -cp target/classes:target/test-classes:$HOME/.m2/repository/org/ow2/asm/asm/7.1/asm-7.1.jar:$HOME/.m2/repository/org/ow2/asm/asm-tree/7.1/asm-tree-7.1.jar
+ * uk.org.keng.scalashade.SignatureAllocationBenchmark [class files...]
+ * <p/>
+ * The class files default to those in the examples directory.
+ */
+public class SignatureAllocationBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0)
+            args = new String[]{"examples/Decimal.class", "examples/StringType.class"};
+
+        List<List<String>> signatures = new ArrayList<>();
+        for (String path : args) {
+            List<String> chunks = signatureOf(path);
+            if (chunks == null) {
+                System.err.println("No ScalaSignature in " + path);
+            } else {
+                signatures.add(chunks);
+            }
+        }
+        if (signatures.isEmpty())
+            return;
+
+        // Warm up both paths so JIT and TLAB sizing settle first
+        measure(signatures, false);
+        measure(signatures, true);
+
+        long staged = measure(signatures, false);
+        long fused = measure(signatures, true);
+        System.out.println("Staged: " + staged + " bytes allocated per class");
+        System.out.println("Fused:  " + fused + " bytes allocated per class");
+    }
+
+    private static long measure(List<List<String>> signatures, boolean fused) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long sink = 0;
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (List<String> chunks : signatures) {
+                sink += fused ? fused(chunks).size() : staged(chunks).size();
+            }
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        if (sink == 42)
+            System.out.println();
+        return allocated / ((long) ITERATIONS * signatures.size());
+    }
+
+    /**
+     * Round trip through the joined string, the raw signature bytes and the joined encoding
+     */
+    private static List<String> staged(List<String> chunks) {
+        StringBuilder joined = new StringBuilder();
+        for (String chunk : chunks) {
+            joined.append(chunk);
+        }
+        ScalaSig sig = ScalaSig.parse(Encoding.decode(joined.toString()));
+        String encoded = Encoding.encode(sig.asBytes());
+        List<String> result = new ArrayList<>();
+        for (int at = 0; at < encoded.length(); at += Encoding.MAX_CHUNK_SIZE / 2) {
+            result.add(encoded.substring(at, Math.min(encoded.length(), at + Encoding.MAX_CHUNK_SIZE / 2)));
+        }
+        return result;
+    }
+
+    /**
+     * Round trip straight from the chunks and back into them
+     */
+    private static List<String> fused(List<String> chunks) {
+        return ScalaSig.parse(chunks).encode();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> signatureOf(String path) throws IOException {
+        ClassNode clazz = new ClassNode();
+        try (FileInputStream in = new FileInputStream(path)) {
+            new ClassReader(in).accept(clazz, ClassReader.SKIP_CODE);
+        }
+        if (clazz.visibleAnnotations == null)
+            return null;
+        for (AnnotationNode an : clazz.visibleAnnotations) {
+            if (an.desc.endsWith("/reflect/ScalaSignature;"))
+                return Collections.singletonList((String) an.values.get(1));
+            if (an.desc.endsWith("/reflect/ScalaLongSignature;"))
+                return (List<String>) an.values.get(1);
+        }
+        return null;
+    }
+}
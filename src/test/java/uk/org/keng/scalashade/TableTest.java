@@ -0,0 +1,236 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+import uk.org.keng.scalashade.model.ExtModClassRefEntry;
+import uk.org.keng.scalashade.model.TermNameEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TableTest {
+
+    /**
+     * Builder for small signatures
+     */
+    static class SigBuilder {
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private int count = 0;
+
+        int entry(int type, byte[] payload) throws IOException {
+            entries.write(type);
+            Nat.write(payload.length, entries);
+            entries.write(payload);
+            return count++;
+        }
+
+        int name(String name) throws IOException {
+            return entry(Table.EntryType.TERM_NAME_ID, name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int classRef(int nameRef, int symbolRef) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            Nat.write(nameRef, payload);
+            if (symbolRef != -1)
+                Nat.write(symbolRef, payload);
+            return entry(Table.EntryType.EXT_MOD_CLASS_REF_ID, payload.toByteArray());
+        }
+
+        int namespace(String namespace) throws IOException {
+            int ref = -1;
+            for (String part : namespace.split("\\.")) {
+                ref = classRef(name(part), ref);
+            }
+            return ref;
+        }
+
+        int nats(int type, int... values) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            for (int value : values)
+                Nat.write(value, payload);
+            return entry(type, payload.toByteArray());
+        }
+
+        byte[] build() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Nat.write(5, out);
+            Nat.write(0, out);
+            Nat.write(count, out);
+            entries.writeTo(out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Resolve every ExtModClassRef in a signature to its namespace
+     */
+    static List<String> namespaces(ScalaSig sig) {
+        Table table = ScalaSig.parse(sig.asBytes()).table();
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < table.entryCount(); i++) {
+            if (table.entry(i) instanceof ExtModClassRefEntry)
+                result.add(resolve(table, i));
+        }
+        return result;
+    }
+
+    private static String resolve(Table table, int index) {
+        ExtModClassRefEntry ref = (ExtModClassRefEntry) table.entry(index);
+        String name = ((TermNameEntry) table.entry(ref.nameRef())).name();
+        return ref.symbolRef() == -1 ? name : resolve(table, ref.symbolRef()) + "." + name;
+    }
+
+    @Test
+    public void UnchangedRoundtrip() throws IOException {
+        SigBuilder b = new SigBuilder();
+        b.namespace("org.apache.spark");
+        b.entry(40, new byte[]{1, 2, 3});
+        byte[] bytes = b.build();
+        ScalaSig sig = ScalaSig.parse(bytes);
+        assertEquals(0, sig.replace("com.google", "shaded.com.google"));
+        assertArrayEquals(bytes, sig.asBytes());
+        assertEquals(bytes.length, sig.size());
+    }
+
+    @Test
+    public void TrailingZeroAccepted() throws IOException {
+        byte[] bytes = new SigBuilder().build();
+        byte[] trailed = Arrays.copyOf(bytes, bytes.length + 1);
+        assertArrayEquals(bytes, ScalaSig.parse(trailed).asBytes());
+    }
+
+    @Test
+    public void ReplaceNamespace() throws IOException {
+        SigBuilder b = new SigBuilder();
+        b.namespace("org.apache.spark");
+        b.entry(40, new byte[]{1, 2, 3});
+        b.namespace("org.apachex");
+        ScalaSig sig = ScalaSig.parse(b.build());
+        assertEquals(1, sig.replace("org.apache", "shaded.org.apache"));
+        List<String> namespaces = namespaces(sig);
+        assertTrue(namespaces.contains("shaded.org.apache.spark"));
+        assertTrue(namespaces.contains("org.apachex"));
+        assertEquals(sig.size(), sig.asBytes().length);
+    }
+
+    @Test
+    public void ReplaceStringLiteral() throws IOException {
+        SigBuilder b = new SigBuilder();
+        int name = b.name("org.apache.Foo");
+        int literal = b.nats(Table.EntryType.LITERALstring, name);
+        b.nats(Table.EntryType.CONSTANT_TYPE_ID, literal);
+        ScalaSig sig = ScalaSig.parse(b.build());
+        sig.replace("org.apache", "shaded.org.apache");
+        Table table = ScalaSig.parse(sig.asBytes()).table();
+        assertEquals("shaded.org.apache.Foo", ((TermNameEntry) table.entry(name)).name());
+    }
+
+    @Test
+    public void MayReference() throws IOException {
+        SigBuilder b = new SigBuilder();
+        b.namespace("org.apache.spark");
+        byte[] bytes = b.build();
+        assertTrue(ScalaSig.mayReference(bytes, new NamespaceTrie("org.apache", "shaded.org.apache")));
+        assertFalse(ScalaSig.mayReference(bytes, new NamespaceTrie("com.google", "shaded.com.google")));
+        NamespaceTrie both = new NamespaceTrie("com.google", "shaded.com.google");
+        both.add("org", "shaded.org");
+        assertTrue(ScalaSig.mayReference(bytes, both));
+    }
+
+    @Test
+    public void RelocateNames() {
+        NamespaceTrie trie = new NamespaceTrie("org.apache", "shaded.org.apache");
+        trie.add("org.apache.spark", "spark");
+        assertEquals("shaded.org.apache.Foo", trie.relocate("org.apache.Foo"));
+        assertEquals("spark.Bar", trie.relocate("org.apache.spark.Bar"));
+        assertEquals("shaded.org.apache", trie.relocate("org.apache"));
+        assertEquals(null, trie.relocate("org.apachex.Foo"));
+        assertEquals(null, trie.relocate("org"));
+    }
+
+    @Test
+    public void ManyRulesWithExclude() throws IOException {
+        SigBuilder b = new SigBuilder();
+        b.namespace("org.apache.spark.sql");
+        b.namespace("org.apache.commons");
+        b.namespace("com.google.common");
+        ScalaSig sig = ScalaSig.parse(b.build());
+
+        NamespaceTrie relocations = new NamespaceTrie();
+        relocations.add("org.apache", "shaded.org.apache");
+        relocations.add("com.google", "shaded.google");
+        relocations.exclude("org.apache.spark");
+        assertTrue(sig.replace(relocations) > 0);
+
+        List<String> namespaces = namespaces(sig);
+        assertTrue(namespaces.contains("org.apache.spark.sql"));
+        assertTrue(namespaces.contains("shaded.org.apache.commons"));
+        assertTrue(namespaces.contains("shaded.google.common"));
+        assertFalse(namespaces.contains("shaded.org.apache.spark"));
+        assertEquals(null, relocations.relocate("org.apache.spark.Foo"));
+    }
+
+    @Test
+    public void ReuseExistingEntries() throws IOException {
+        SigBuilder b = new SigBuilder();
+        b.namespace("shaded.org.apache");
+        b.namespace("org.apache.spark");
+        ScalaSig sig = ScalaSig.parse(b.build());
+        int entries = sig.table().entryCount();
+        assertEquals(1, sig.replace("org.apache", "shaded.org.apache"));
+        assertEquals(entries, sig.table().entryCount());
+        assertTrue(namespaces(sig).contains("shaded.org.apache.spark"));
+    }
+
+    @Test
+    public void CompactDropsUnusedEntries() throws IOException {
+        SigBuilder b = new SigBuilder();
+        int spark = b.namespace("org.apache.spark");
+        b.nats(16, spark, spark);
+        byte[] bytes = b.build();
+        ScalaSig sig = ScalaSig.parse(bytes);
+        assertEquals(1, sig.replace("org.apache", "shaded"));
+        // org & apache names and the org ref are no longer used
+        assertEquals(3, sig.compact());
+        assertTrue(sig.size() < bytes.length);
+
+        List<String> namespaces = namespaces(sig);
+        assertEquals(Arrays.asList("shaded", "shaded.spark"), namespaces);
+        Table table = ScalaSig.parse(sig.asBytes()).table();
+        assertEquals(5, table.entryCount());
+        assertEquals(0, sig.compact());
+    }
+
+    @Test
+    public void CompactSkipsUnknownEntries() throws IOException {
+        SigBuilder b = new SigBuilder();
+        b.namespace("org.apache.spark");
+        b.entry(99, new byte[]{1});
+        ScalaSig sig = ScalaSig.parse(b.build());
+        sig.replace("org.apache", "shaded");
+        byte[] before = sig.asBytes();
+        assertEquals(0, sig.compact());
+        assertArrayEquals(before, sig.asBytes());
+    }
+
+    @Test
+    public void CompiledTargets() {
+        NamespaceTrie trie = new NamespaceTrie("org.apache", "shaded.apache");
+        trie.add("com.google", "shaded.google");
+        trie.add("io.netty", "shaded.apache");
+        assertEquals(3, trie.targetCount());
+        assertEquals(7, trie.nameCount());
+        byte[] data = "xxgooglexx".getBytes(StandardCharsets.UTF_8);
+        assertTrue(trie.nameId(data, 2, 6) >= 0);
+        assertEquals(-1, trie.nameId(data, 2, 5));
+        assertEquals("shaded.google", trie.root().child("com").child("google").with().toString());
+    }
+}